@@ -0,0 +1,41 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads for blocking I/O. This version is used on Java 21+ and runs the tasks on virtual threads.
+ */
+public final class ThreadSupport {
+    private ThreadSupport() {
+        // Utility class
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return true;
+    }
+
+    /**
+     * Returns a new executor that starts a virtual thread for every task. Virtual threads are cheap and not pooled, the caches that are reused between tasks
+     * (e.g. {@link de.mas.wiiu.jnus.utils.cryptography.DecryptionContextCache}) are shared pools and don't depend on the thread.
+     */
+    public static ExecutorService newIOExecutor() {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+}
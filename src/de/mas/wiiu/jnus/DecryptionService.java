@@ -31,6 +31,7 @@ import de.mas.wiiu.jnus.utils.CheckSumWrongException;
 import de.mas.wiiu.jnus.utils.FSTUtils;
 import de.mas.wiiu.jnus.utils.FileUtils;
 import de.mas.wiiu.jnus.utils.Utils;
+import lombok.Setter;
 import lombok.val;
 import lombok.extern.java.Log;
 
@@ -40,6 +41,10 @@ public final class DecryptionService {
     private final FSTDataProvider dataProvider;
 
     private boolean parallelizable = false;
+    /**
+     * Threads used for the decryption, the default context is used if none is set.
+     */
+    @Setter private ExecutionContext executionContext = null;
 
     public static DecryptionService getInstance(FSTDataProvider dataProvider) {
         return new DecryptionService(dataProvider);
@@ -49,6 +54,10 @@ public final class DecryptionService {
         this.dataProvider = dataProvider;
     }
 
+    public ExecutionContext getExecutionContext() {
+        return executionContext != null ? executionContext : ExecutionContext.getDefault();
+    }
+
     public void decryptFSTEntryTo(boolean useFullPath, FSTEntry entry, String outputPath, boolean skipExistingFile) {
         try {
             decryptFSTEntryToAsync(useFullPath, entry, outputPath, skipExistingFile).get();
@@ -58,57 +67,59 @@ public final class DecryptionService {
     }
 
     public CompletableFuture<Void> decryptFSTEntryToAsync(boolean useFullPath, FSTEntry entry, String outputPath, boolean skipExistingFile) {
-        return CompletableFuture.runAsync(() -> {
-            try {
-                if (entry.isNotInPackage()) {
-                    return;
-                }
+        return CompletableFuture.runAsync(() -> decryptFSTEntryToFile(useFullPath, entry, outputPath, skipExistingFile), getExecutionContext().getIoExecutor());
+    }
 
-                log.info("Decrypting " + entry.getFilename());
+    private void decryptFSTEntryToFile(boolean useFullPath, FSTEntry entry, String outputPath, boolean skipExistingFile) {
+        try {
+            if (entry.isNotInPackage()) {
+                return;
+            }
 
-                String targetFilePath = new StringBuilder().append(outputPath).append("/").append(entry.getFilename()).toString();
-                String fullPath = new StringBuilder().append(outputPath).toString();
+            log.info("Decrypting " + entry.getFilename());
 
-                if (useFullPath) {
-                    targetFilePath = new StringBuilder().append(outputPath).append(entry.getFullPath()).toString();
-                    fullPath = new StringBuilder().append(outputPath).append(entry.getPath()).toString();
-                    if (entry.isDir()) { // If the entry is a directory. Create it and return.
-                        Utils.createDir(targetFilePath);
-                        return;
-                    }
-                } else if (entry.isDir()) {
-                    return;
-                }
+            String targetFilePath = new StringBuilder().append(outputPath).append("/").append(entry.getFilename()).toString();
+            String fullPath = new StringBuilder().append(outputPath).toString();
 
-                if (!Utils.createDir(fullPath)) {
+            if (useFullPath) {
+                targetFilePath = new StringBuilder().append(outputPath).append(entry.getFullPath()).toString();
+                fullPath = new StringBuilder().append(outputPath).append(entry.getPath()).toString();
+                if (entry.isDir()) { // If the entry is a directory. Create it and return.
+                    Utils.createDir(targetFilePath);
                     return;
                 }
+            } else if (entry.isDir()) {
+                return;
+            }
 
-                if (skipExistingFile) {
-                    File targetFile = new File(targetFilePath);
-                    if (targetFile.exists()) {
-                        if (entry.isDir()) {
-                            return;
-                        }
-                        if (targetFile.length() == entry.getFileSize()) {
+            if (!Utils.createDir(fullPath)) {
+                return;
+            }
+
+            if (skipExistingFile) {
+                File targetFile = new File(targetFilePath);
+                if (targetFile.exists()) {
+                    if (entry.isDir()) {
+                        return;
+                    }
+                    if (targetFile.length() == entry.getFileSize()) {
 
-                            log.info("File already exists: " + entry.getFilename());
-                            return;
+                        log.info("File already exists: " + entry.getFilename());
+                        return;
 
-                        } else {
-                            log.info("File already exists but the filesize doesn't match: " + entry.getFilename());
-                        }
+                    } else {
+                        log.info("File already exists but the filesize doesn't match: " + entry.getFilename());
                     }
                 }
+            }
 
-                File target = new File(targetFilePath);
+            File target = new File(targetFilePath);
 
-                // to avoid having fragmented files.
-                FileUtils.FileAsOutputStreamWrapper(target, entry.getFileSize(), newOutputStream -> decryptFSTEntryToStream(entry, newOutputStream));
-            } catch (Exception ex) {
-                throw new CompletionException(ex);
-            }
-        });
+            // to avoid having fragmented files.
+            FileUtils.FileAsOutputStreamWrapper(target, entry.getFileSize(), newOutputStream -> decryptFSTEntryToStream(entry, newOutputStream));
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        }
     }
 
     public void decryptFSTEntryToStream(FSTEntry entry, OutputStream outputStream) throws IOException {
@@ -162,7 +173,7 @@ public final class DecryptionService {
 
     public void decryptFSTEntryListTo(boolean fullPath, List<FSTEntry> list, String outputFolder, boolean skipExisting)
             throws IOException, CheckSumWrongException {
-        if (parallelizable && Settings.ALLOW_PARALLELISATION) {
+        if (parallelizable && getExecutionContext().getIoParallelism() > 1) {
             try {
                 decryptFSTEntryListToAsync(fullPath, list, outputFolder, skipExisting).get();
             } catch (InterruptedException | ExecutionException e) {
@@ -177,8 +188,7 @@ public final class DecryptionService {
 
     public CompletableFuture<Void> decryptFSTEntryListToAsync(boolean fullPath, List<FSTEntry> list, String outputFolder, boolean skipExisting)
             throws IOException, CheckSumWrongException {
-        return CompletableFuture
-                .allOf(list.stream().map(entry -> decryptFSTEntryToAsync(fullPath, entry, outputFolder, skipExisting)).toArray(CompletableFuture[]::new));
+        return getExecutionContext().forEachIO(list, entry -> decryptFSTEntryToFile(fullPath, entry, outputFolder, skipExisting));
     }
 
 }
@@ -0,0 +1,114 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import de.mas.wiiu.jnus.utils.ThreadSupport;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Defines where the library runs its work. Blocking I/O (reading and writing files, producers of streams) runs on the I/O executor, decryption and hashing
+ * on the CPU executor. The parallelism values limit how many tasks of one operation are run at the same time.
+ * 
+ * The I/O executor must not limit the number of threads, the tasks may wait for each other. On Java 21+ it uses virtual threads.
+ */
+public final class ExecutionContext {
+    private static volatile ExecutionContext defaultContext = null;
+
+    @Getter private final Executor ioExecutor;
+    @Getter private final int ioParallelism;
+    @Getter private final Executor cpuExecutor;
+    @Getter private final int cpuParallelism;
+
+    public ExecutionContext(@NonNull Executor ioExecutor, int ioParallelism, @NonNull Executor cpuExecutor, int cpuParallelism) {
+        this.ioExecutor = ioExecutor;
+        this.ioParallelism = Math.max(1, ioParallelism);
+        this.cpuExecutor = cpuExecutor;
+        this.cpuParallelism = Math.max(1, cpuParallelism);
+    }
+
+    /**
+     * Returns the context that is used if none has been set explicitly. By default, the CPU work uses the common ForkJoinPool.
+     */
+    public static ExecutionContext getDefault() {
+        ExecutionContext result = defaultContext;
+        if (result == null) {
+            synchronized (ExecutionContext.class) {
+                if (defaultContext == null) {
+                    int cpus = ForkJoinPool.getCommonPoolParallelism();
+                    defaultContext = new ExecutionContext(ThreadSupport.newIOExecutor(), Math.max(4, cpus), ForkJoinPool.commonPool(), cpus);
+                }
+                result = defaultContext;
+            }
+        }
+        return result;
+    }
+
+    public static void setDefault(@NonNull ExecutionContext context) {
+        defaultContext = context;
+    }
+
+    /**
+     * Returns a context that runs the I/O on the I/O executor of the default context, but doesn't process anything in parallel.
+     */
+    public static ExecutionContext sequential() {
+        return new ExecutionContext(getDefault().getIoExecutor(), 1, Runnable::run, 1);
+    }
+
+    public boolean isParallel() {
+        return ioParallelism > 1 || cpuParallelism > 1;
+    }
+
+    /**
+     * Runs the action for all items on the I/O executor, with at most <code>ioParallelism</code> items at the same time.
+     */
+    public <T> CompletableFuture<Void> forEachIO(Collection<T> items, Consumer<T> action) {
+        Iterator<T> it = items.iterator();
+        int workers = Math.min(ioParallelism, items.size());
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                while (true) {
+                    T item;
+                    synchronized (it) {
+                        if (!it.hasNext()) {
+                            return;
+                        }
+                        item = it.next();
+                    }
+                    action.accept(item);
+                }
+            }, ioExecutor));
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0]));
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutionContext [ioParallelism=" + ioParallelism + ", cpuParallelism=" + cpuParallelism + ", virtualThreads="
+                + ThreadSupport.isVirtualThreadsSupported() + "]";
+    }
+}
@@ -23,7 +23,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 
@@ -34,6 +33,7 @@ import de.mas.wiiu.jnus.utils.DataProviderUtils;
 import de.mas.wiiu.jnus.utils.FileUtils;
 import de.mas.wiiu.jnus.utils.Utils;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.java.Log;
 
 @Log
@@ -43,6 +43,10 @@ public final class ExtractionService {
     @Getter private final NUSTitle NUSTitle;
 
     private boolean parallelizable = false;
+    /**
+     * Threads used for the extraction, the default context is used if none is set.
+     */
+    @Setter private ExecutionContext executionContext = null;
 
     public static ExtractionService getInstance(NUSTitle nustitle) {
         if (!instances.containsKey(nustitle)) {
@@ -58,6 +62,10 @@ public final class ExtractionService {
         this.NUSTitle = nustitle;
     }
 
+    public ExecutionContext getExecutionContext() {
+        return executionContext != null ? executionContext : ExecutionContext.getDefault();
+    }
+
     private NUSDataProvider getDataProvider() {
         return getNUSTitle().getDataProvider();
     }
@@ -97,15 +105,15 @@ public final class ExtractionService {
 
     public void extractEncryptedContentFilesTo(List<Content> list, String outputFolder, boolean withHashes) throws IOException {
         Utils.createDir(outputFolder);
-        if (parallelizable && Settings.ALLOW_PARALLELISATION) {
+        if (parallelizable && getExecutionContext().getIoParallelism() > 1) {
             try {
-                CompletableFuture.allOf(list.stream().map((Content c) -> CompletableFuture.runAsync(() -> {
+                getExecutionContext().forEachIO(list, c -> {
                     try {
                         extractEncryptedContentTo(c, outputFolder, withHashes);
                     } catch (IOException e) {
                         throw new CompletionException(e);
                     }
-                })).toArray(CompletableFuture[]::new)).get();
+                }).get();
             } catch (InterruptedException | ExecutionException e) {
                 throw new RuntimeException(e);
             }
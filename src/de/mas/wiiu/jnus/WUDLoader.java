@@ -32,6 +32,7 @@ import de.mas.wiiu.jnus.implementations.wud.parser.WUDGamePartition;
 import de.mas.wiiu.jnus.implementations.wud.parser.WUDInfo;
 import de.mas.wiiu.jnus.implementations.wud.parser.WUDInfoParser;
 import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReader;
+import de.mas.wiiu.jnus.implementations.wud.reader.WUDSectorCache;
 import de.mas.wiiu.jnus.interfaces.FSTDataProvider;
 import lombok.NonNull;
 import lombok.val;
@@ -60,13 +61,34 @@ public final class WUDLoader {
     }
 
     public static WUDInfo load(String WUDPath, byte[] titleKey, boolean forceNoKey) throws IOException, ParseException {
+        return load(WUDPath, titleKey, forceNoKey, false);
+    }
+
+    /**
+     * @param memoryMapped
+     *            read an uncompressed, not splitted image through memory mappings
+     */
+    public static WUDInfo load(String WUDPath, byte[] titleKey, boolean forceNoKey, boolean memoryMapped) throws IOException, ParseException {
+        return load(WUDPath, titleKey, forceNoKey, memoryMapped, null);
+    }
+
+    /**
+     * @param sectorCache
+     *            optional cache for the raw sectors of the image, it's attached before the partitions are parsed. See
+     *            {@link WUDDiscReader#setSectorCache(WUDSectorCache)}.
+     */
+    public static WUDInfo load(String WUDPath, byte[] titleKey, boolean forceNoKey, boolean memoryMapped, WUDSectorCache sectorCache)
+            throws IOException, ParseException {
         byte[] usedTitleKey = titleKey;
         File wudFile = new File(WUDPath);
         if (!wudFile.exists()) {
             throw new FileNotFoundException(wudFile.getAbsolutePath() + " was not found");
         }
 
-        WUDImage image = new WUDImage(wudFile);
+        WUDImage image = new WUDImage(wudFile, memoryMapped);
+        if (sectorCache != null) {
+            image.getWUDDiscReader().setSectorCache(sectorCache);
+        }
         if (usedTitleKey == null && !forceNoKey) {
             File keyFile = new File(wudFile.getParentFile().getPath() + File.separator + Settings.WUD_KEY_FILENAME);
             if (!keyFile.exists()) {
@@ -17,38 +17,70 @@
 
 package de.mas.wiiu.jnus;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Optional;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
+import java.util.zip.Deflater;
 
 import de.mas.wiiu.jnus.implementations.wud.WUDImage;
 import de.mas.wiiu.jnus.implementations.wud.WUDImageCompressedInfo;
+import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReaderSplitted;
+import de.mas.wiiu.jnus.utils.BufferPool;
 import de.mas.wiiu.jnus.utils.ByteArrayBuffer;
-import de.mas.wiiu.jnus.utils.ByteArrayWrapper;
+import de.mas.wiiu.jnus.utils.CheckSumWrongException;
+import de.mas.wiiu.jnus.utils.FingerprintTable;
 import de.mas.wiiu.jnus.utils.HashResult;
 import de.mas.wiiu.jnus.utils.HashUtil;
+import de.mas.wiiu.jnus.utils.StreamPipeline;
+import de.mas.wiiu.jnus.utils.StreamPipeline.Chunk;
 import de.mas.wiiu.jnus.utils.StreamUtils;
 import de.mas.wiiu.jnus.utils.Utils;
 import lombok.extern.java.Log;
 
 @Log
 public final class WUDService {
+    private static final int COMPRESS_BATCH_SIZE = 0x100000;
+    // Smaller sectors make the sector table of a full image bigger than 24 MiB.
+    private static final int MIN_SECTOR_SIZE = 0x1000;
+    // Initial capacity of the table of unique sectors, it grows with the number of unique sectors instead of the image size.
+    private static final int INITIAL_UNIQUE_SECTORS = 0x10000;
+    private static final long PROGRESS_INTERVAL = 0x2000000;
+    private static final int SECTOR_HASH_SIZE = 20;
+    private static final int DECOMPRESS_BATCH_SECTORS = 64;
+    private static final int CHECKPOINT_MAGIC = 0x57555843;
+    private static final int CHECKPOINT_VERSION = 2;
+    private static final String CHECKPOINT_EXTENSION = ".checkpoint";
+    /**
+     * Suggested number of bytes between two checkpoints of a compression.
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 0x40000000L;
+
     private WUDService() {
         // Just an utility class
     }
@@ -62,6 +94,44 @@ public final class WUDService {
     }
 
     public static Optional<File> compressWUDToWUX(WUDImage image, String outputFolder, String filename, boolean overwrite) throws IOException {
+        return compressWUDToWUX(image, outputFolder, filename, overwrite, ExecutionContext.getDefault());
+    }
+
+    /**
+     * The sectors are read in batches and hashed on the CPU executor of the context. The deduplication and the writing happen in order on the calling
+     * thread, so the output doesn't depend on the context.
+     */
+    public static Optional<File> compressWUDToWUX(WUDImage image, String outputFolder, String filename, boolean overwrite, ExecutionContext context)
+            throws IOException {
+        return compressWUDToWUX(image, outputFolder, filename, overwrite, context, 0);
+    }
+
+    /**
+     * Compresses the image and persists a checkpoint every <code>checkpointInterval</code> bytes of the image, see
+     * {@link #compressWUDToWUX(WUDImage, String, String, boolean, WUXCompressionConfig)}.
+     * 
+     * @param checkpointInterval
+     *            see {@link #DEFAULT_CHECKPOINT_INTERVAL}, 0 disables the checkpoints
+     */
+    public static Optional<File> compressWUDToWUX(WUDImage image, String outputFolder, String filename, boolean overwrite, ExecutionContext context,
+            long checkpointInterval) throws IOException {
+        WUXCompressionConfig config = new WUXCompressionConfig();
+        config.setExecutionContext(context);
+        config.setCheckpointInterval(checkpointInterval);
+        return compressWUDToWUX(image, outputFolder, filename, overwrite, config);
+    }
+
+    /**
+     * Compresses the image with the sector size and the optional Deflate compression of the config.
+     * 
+     * If checkpoints are enabled, a checkpoint (the sector table so far, the hashes and offsets of the written sectors and the length of the output) is
+     * persisted next to the output file. If the output file and a matching checkpoint already exist, the compression continues from the checkpoint, even
+     * if <code>overwrite</code> is false. A checkpoint only matches if the path, the length and the modification time of the source file are unchanged. A
+     * checkpoint that doesn't match only replaces an existing output if <code>overwrite</code> is true. The checkpoint is deleted once the output is
+     * complete.
+     */
+    public static Optional<File> compressWUDToWUX(WUDImage image, String outputFolder, String filename, boolean overwrite, WUXCompressionConfig config)
+            throws IOException {
         if (image.isCompressed()) {
             log.info("Given image is already compressed");
             return Optional.empty();
@@ -72,6 +142,12 @@ public final class WUDService {
             return Optional.empty();
         }
 
+        int sectorSize = config.getSectorSize();
+        if (sectorSize < MIN_SECTOR_SIZE || Integer.bitCount(sectorSize) != 1) {
+            log.info("Sector size has to be a power of two and at least " + MIN_SECTOR_SIZE);
+            return Optional.empty();
+        }
+
         String usedOutputFolder = outputFolder;
         if (usedOutputFolder == null) usedOutputFolder = "";
         Utils.createDir(usedOutputFolder);
@@ -83,92 +159,348 @@ public final class WUDService {
             filePath = usedOutputFolder + File.separator + filename;
         }
 
+        long checkpointInterval = config.getCheckpointInterval();
         File outputFile = new File(filePath);
+        File checkpointFile = new File(filePath + CHECKPOINT_EXTENSION);
+        boolean checkpointExists = checkpointInterval > 0 && checkpointFile.exists();
+        boolean outputExists = outputFile.exists();
 
-        if (outputFile.exists() && !overwrite) {
+        if (outputExists && !overwrite && !checkpointExists) {
             log.info("Couldn't compress wud, target file already exists (" + outputFile.getAbsolutePath() + ")");
             return Optional.empty();
         }
 
+        ExecutionContext context = config.getExecutionContext() != null ? config.getExecutionContext() : ExecutionContext.getDefault();
+        WUDImageCompressedInfo info = new WUDImageCompressedInfo(sectorSize, config.isDeflate() ? WUDImageCompressedInfo.FLAG_DEFLATE : 0,
+                image.getWUDFileSize());
+        int sectorTableEntryCount = (int) info.getIndexTableEntryCount();
+        long sectorTableStart = info.getOffsetIndexTable();
+        long sectorTableEnd = info.getOffsetSectorArray();
+
         log.info("Writing compressed file to: " + outputFile.getAbsolutePath());
         RandomAccessFile fileOutput = new RandomAccessFile(outputFile, "rw");
         try {
+            CompressionState state = null;
+            if (checkpointExists) {
+                state = CompressionState.loadCheckpoint(checkpointFile, image, info, fileOutput);
+            }
+            if (state == null) {
+                if (outputExists && !overwrite) {
+                    log.info("Couldn't compress wud, checkpoint can't be used and target file already exists (" + outputFile.getAbsolutePath() + ")");
+                    return Optional.empty();
+                }
+                state = new CompressionState(image, info);
+                fileOutput.setLength(0);
+
+                byte[] header = info.getHeaderAsBytes();
+                log.info("Writing header");
+                fileOutput.write(header);
+
+                fileOutput.write(new byte[(int) (sectorTableEnd - sectorTableStart)]);
+            } else {
+                log.info("Resuming from checkpoint at " + state.written);
+                fileOutput.setLength(state.outputLength);
+                fileOutput.seek(state.outputLength);
+            }
+            CompressionState usedState = state;
+            long remaining = image.getWUDFileSize() - state.written;
 
-            WUDImageCompressedInfo info = WUDImageCompressedInfo.getDefaultCompressedInfo();
+            int batchSectors = Math.max(1, COMPRESS_BATCH_SIZE / sectorSize);
+            InputStream in = image.getWUDDiscReader().readEncryptedToStream(state.written, remaining);
+            StreamPipeline pipeline = new StreamPipeline(context, context.getCpuParallelism() * 2 + 2, batchSectors * sectorSize);
 
-            byte[] header = info.getHeaderAsBytes();
-            log.info("Writing header");
-            fileOutput.write(header);
+            log.info("Writing sectors");
+            long read;
+            try {
+                read = pipeline.run(in, remaining, chunk -> chunk.setResult(prepareSectors(chunk, sectorSize, config)), chunk -> {
+                    writeUniqueSectors(fileOutput, chunk, sectorSize, usedState);
+                    boolean checkpointDue = checkpointInterval > 0 && usedState.written - usedState.lastCheckpoint >= checkpointInterval;
+                    if (checkpointDue && usedState.written < usedState.totalSize) {
+                        usedState.saveCheckpoint(checkpointFile, fileOutput);
+                    }
+                    return true;
+                });
+            } catch (CheckSumWrongException e) {
+                // Nothing is verified here.
+                throw new IOException(e);
+            }
+            if (read < remaining) {
+                throw new EOFException("Unexpected end of the image at " + state.written);
+            }
+            state.printProgress();
+            System.out.println();
+            log.info("Sectors compressed.");
 
-            int sectorTableEntryCount = (int) ((image.getWUDFileSize() + WUDImageCompressedInfo.SECTOR_SIZE - 1) / (long) WUDImageCompressedInfo.SECTOR_SIZE);
+            if (info.isDeflated()) {
+                // The offsets of the stored sectors follow the sectors, the header points to them.
+                log.info("Writing sector offsets");
+                info.setOffsetSectorOffsetTable(state.outputLength);
+                ByteBuffer offsets = ByteBuffer.allocate((state.realSector + 1) * 0x08).order(ByteOrder.LITTLE_ENDIAN);
+                offsets.asLongBuffer().put(state.sectorOffsets, 0, state.realSector).put(state.outputLength);
+                fileOutput.seek(state.outputLength);
+                fileOutput.write(offsets.array());
+                fileOutput.seek(0);
+                fileOutput.write(info.getHeaderAsBytes());
+            }
 
-            long sectorTableStart = fileOutput.getFilePointer();
-            long sectorTableEnd = Utils.align(sectorTableEntryCount * 0x04, WUDImageCompressedInfo.SECTOR_SIZE);
-            byte[] sectorTablePlaceHolder = new byte[(int) (sectorTableEnd - sectorTableStart)];
+            log.info("Writing sector table");
+            fileOutput.seek(sectorTableStart);
+            ByteBuffer buffer = ByteBuffer.allocate((int) (sectorTableEnd - sectorTableStart));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asIntBuffer().put(state.sectorMapping);
 
-            fileOutput.write(sectorTablePlaceHolder);
+            fileOutput.write(buffer.array());
+        } finally {
+            fileOutput.close();
+        }
+        if (checkpointFile.exists()) {
+            Files.delete(checkpointFile.toPath());
+        }
 
-            Map<ByteArrayWrapper, Integer> sectorHashes = new HashMap<>();
-            Map<Integer, Integer> sectorMapping = new TreeMap<>();
+        return Optional.of(outputFile);
+    }
 
-            InputStream in = image.getWUDDiscReader().readEncryptedToStream(0, image.getWUDFileSize());
+    private static SectorBatch prepareSectors(Chunk chunk, int sectorSize, WUXCompressionConfig config) throws NoSuchAlgorithmException, DigestException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+        byte[] data = chunk.getData();
+        int count = (chunk.getLength() + sectorSize - 1) / sectorSize;
+        // A short last sector is padded with zeros, like it's written.
+        Arrays.fill(data, chunk.getLength(), count * sectorSize, (byte) 0);
+
+        SectorBatch batch = new SectorBatch(count);
+        for (int i = 0; i < count; i++) {
+            sha1.update(data, i * sectorSize, sectorSize);
+            sha1.digest(batch.hashes, i * SECTOR_HASH_SIZE, SECTOR_HASH_SIZE);
+        }
+        if (config.isDeflate()) {
+            batch.deflated = new byte[count][];
+            Deflater deflater = new Deflater(config.getDeflateLevel());
+            byte[] buffer = new byte[sectorSize];
+            try {
+                for (int i = 0; i < count; i++) {
+                    deflater.reset();
+                    deflater.setInput(data, i * sectorSize, sectorSize);
+                    deflater.finish();
+                    int length = 0;
+                    while (!deflater.finished() && length < sectorSize) {
+                        length += deflater.deflate(buffer, length, sectorSize - length);
+                    }
+                    // Sectors that don't get smaller are stored as they are.
+                    if (deflater.finished() && length < sectorSize) {
+                        batch.deflated[i] = Arrays.copyOf(buffer, length);
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return batch;
+    }
 
-            int bufferSize = WUDImageCompressedInfo.SECTOR_SIZE;
-            byte[] blockBuffer = new byte[bufferSize];
-            ByteArrayBuffer overflow = new ByteArrayBuffer(bufferSize);
+    private static void writeUniqueSectors(RandomAccessFile fileOutput, Chunk chunk, int sectorSize, CompressionState state) throws IOException {
+        SectorBatch batch = (SectorBatch) chunk.getResult();
+        byte[] data = chunk.getData();
+        int count = batch.hashes.length / SECTOR_HASH_SIZE;
+        // The new sectors are moved to the front of the chunk to write them at once. A stored sector is never longer than the sector, so this doesn't
+        // overwrite sectors which haven't been processed yet.
+        int writeLength = 0;
+        for (int i = 0; i < count; i++) {
+            int oldOffset = state.sectorHashes.putIfAbsent(batch.hashes, i * SECTOR_HASH_SIZE);
+            if (oldOffset < 0) {
+                state.sectorMapping[state.curSector] = state.realSector;
+                byte[] deflated = batch.deflated != null ? batch.deflated[i] : null;
+                int length = deflated != null ? deflated.length : sectorSize;
+                if (deflated != null) {
+                    System.arraycopy(deflated, 0, data, writeLength, length);
+                } else if (writeLength != i * sectorSize) {
+                    System.arraycopy(data, i * sectorSize, data, writeLength, sectorSize);
+                }
+                state.addSector(length);
+                writeLength += length;
+            } else {
+                state.sectorMapping[state.curSector] = oldOffset;
+            }
+            state.curSector++;
+        }
+        fileOutput.write(data, 0, writeLength);
 
-            long written = 0;
-            int curSector = 0;
-            int realSector = 0;
+        state.written += chunk.getLength();
+        if (state.written - state.lastProgress >= PROGRESS_INTERVAL) {
+            state.printProgress();
+        }
+    }
 
-            log.info("Writing sectors");
-            Integer oldOffset = null;
-            do {
-                int read = StreamUtils.getChunkFromStream(in, blockBuffer, overflow, bufferSize);
-                ByteArrayWrapper hash;
-                try {
-                    hash = new ByteArrayWrapper(HashUtil.hashSHA1(blockBuffer));
-                } catch (NoSuchAlgorithmException e1) {
-                    throw new IOException(e1);
-                }
+    private static class SectorBatch {
+        private final byte[] hashes;
+        /** Deflated sectors, <code>null</code> for sectors which are stored as they are. */
+        private byte[][] deflated;
+
+        SectorBatch(int count) {
+            this.hashes = new byte[count * SECTOR_HASH_SIZE];
+        }
+    }
+
+    private static class CompressionState {
+        /** The source file is identified by its path, length and modification time. */
+        private final String sourcePath;
+        private final long sourceLength;
+        private final long sourceLastModified;
+        private final long totalSize;
+        private final int sectorSize;
+        private final int flags;
+        private final FingerprintTable sectorHashes;
+        private final int[] sectorMapping;
+        /** Offset of the first sector in the output. */
+        private final long dataOffset;
+        /** Offsets of the stored sectors, only used for deflated images. */
+        private long[] sectorOffsets;
+        private int curSector = 0;
+        private int realSector = 0;
+        private long outputLength;
+        private long written = 0;
+        private long lastProgress = 0;
+        private long lastCheckpoint = 0;
+
+        CompressionState(WUDImage image, WUDImageCompressedInfo info) {
+            File source = image.getFileHandle();
+            this.sourcePath = source.getAbsolutePath();
+            this.sourceLength = source.length();
+            this.sourceLastModified = source.lastModified();
+            this.totalSize = image.getWUDFileSize();
+            this.sectorSize = info.getSectorSize();
+            this.flags = info.getFlags();
+            int sectorCount = (int) info.getIndexTableEntryCount();
+            this.sectorHashes = new FingerprintTable(SECTOR_HASH_SIZE, Math.min(sectorCount, INITIAL_UNIQUE_SECTORS));
+            this.sectorMapping = new int[sectorCount];
+            this.dataOffset = info.getOffsetSectorArray();
+            this.outputLength = dataOffset;
+            this.sectorOffsets = info.isDeflated() ? new long[1024] : null;
+        }
 
-                if ((oldOffset = sectorHashes.get(hash)) == null) {
-                    sectorMapping.put(curSector, realSector);
-                    sectorHashes.put(hash, realSector);
-                    fileOutput.write(blockBuffer);
-                    realSector++;
-                } else {
-                    sectorMapping.put(curSector, oldOffset);
-                    oldOffset = null;
+        void addSector(int length) {
+            if (sectorOffsets != null) {
+                if (realSector == sectorOffsets.length) {
+                    sectorOffsets = Arrays.copyOf(sectorOffsets, sectorOffsets.length * 2);
                 }
+                sectorOffsets[realSector] = outputLength;
+            }
+            realSector++;
+            outputLength += length;
+        }
 
-                written += read;
-                curSector++;
-                if (curSector % 10 == 0) {
-                    double readMB = written / 1024.0 / 1024.0;
-                    double writtenMB = ((long) realSector * (long) bufferSize) / 1024.0 / 1024.0;
-                    double percent = ((double) written / image.getWUDFileSize()) * 100;
-                    double ratio = 1 / (writtenMB / readMB);
-                    System.out.print(String.format(Locale.ROOT, "\rCompressing into .wux | Progress %.2f%% | Ratio: 1:%.2f | Read: %.2fMB | Written: %.2fMB\t",
-                            percent, ratio, readMB, writtenMB));
+        /**
+         * Makes the output durable and replaces the checkpoint atomically, so the checkpoint always matches a prefix of the output.
+         */
+        void saveCheckpoint(File checkpointFile, RandomAccessFile output) throws IOException {
+            output.getChannel().force(false);
+
+            File tmp = new File(checkpointFile.getPath() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeInt(CHECKPOINT_VERSION);
+                out.writeUTF(sourcePath);
+                out.writeLong(sourceLength);
+                out.writeLong(sourceLastModified);
+                out.writeLong(totalSize);
+                out.writeInt(sectorSize);
+                out.writeInt(flags);
+                out.writeInt(sectorMapping.length);
+                out.writeLong(dataOffset);
+                out.writeInt(curSector);
+                out.writeInt(realSector);
+                out.writeLong(outputLength);
+                for (int i = 0; i < curSector; i++) {
+                    out.writeInt(sectorMapping[i]);
                 }
-            } while (written < image.getWUDFileSize());
-            System.out.println();
-            log.info("Sectors compressed.");
-            log.info("Writing sector table");
-            fileOutput.seek(sectorTableStart);
-            ByteBuffer buffer = ByteBuffer.allocate(sectorTablePlaceHolder.length);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
-            for (Entry<Integer, Integer> e : sectorMapping.entrySet()) {
-                buffer.putInt(e.getValue());
+                sectorHashes.writeHashes(out);
+                if (sectorOffsets != null) {
+                    for (int i = 0; i < realSector; i++) {
+                        out.writeLong(sectorOffsets[i]);
+                    }
+                }
+                out.flush();
+                fos.getFD().sync();
             }
+            Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastCheckpoint = written;
+        }
 
-            fileOutput.write(buffer.array());
-        } finally {
-            fileOutput.close();
+        /**
+         * @return the state of the checkpoint or <code>null</code> if it doesn't match the image, the settings or the output
+         */
+        static CompressionState loadCheckpoint(File checkpointFile, WUDImage image, WUDImageCompressedInfo info, RandomAccessFile output)
+                throws IOException {
+            CompressionState state = new CompressionState(image, info);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+                if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+                    log.info("Checkpoint has an unknown format, starting over.");
+                    return null;
+                }
+                if (!in.readUTF().equals(state.sourcePath) || in.readLong() != state.sourceLength || in.readLong() != state.sourceLastModified) {
+                    log.info("Checkpoint belongs to another or a modified source file, starting over.");
+                    return null;
+                }
+                if (in.readLong() != state.totalSize || in.readInt() != state.sectorSize || in.readInt() != state.flags
+                        || in.readInt() != state.sectorMapping.length || in.readLong() != state.dataOffset) {
+                    log.info("Checkpoint doesn't match the image or the settings, starting over.");
+                    return null;
+                }
+                state.curSector = in.readInt();
+                int realSectors = in.readInt();
+                long outputLength = in.readLong();
+                for (int i = 0; i < state.curSector; i++) {
+                    state.sectorMapping[i] = in.readInt();
+                }
+                byte[] hash = new byte[SECTOR_HASH_SIZE];
+                for (int i = 0; i < realSectors; i++) {
+                    in.readFully(hash);
+                    if (state.sectorHashes.putIfAbsent(hash, 0) >= 0) {
+                        log.info("Checkpoint is invalid, starting over.");
+                        return null;
+                    }
+                }
+                if (state.sectorOffsets != null) {
+                    state.sectorOffsets = new long[Math.max(1024, realSectors)];
+                    for (int i = 0; i < realSectors; i++) {
+                        state.sectorOffsets[i] = in.readLong();
+                    }
+                }
+                state.realSector = realSectors;
+                state.outputLength = outputLength;
+            } catch (EOFException e) {
+                log.info("Checkpoint is incomplete, starting over.");
+                return null;
+            }
+            if (state.curSector == 0 || output.length() < state.outputLength) {
+                log.info("Output is shorter than the checkpoint, starting over.");
+                return null;
+            }
+            // The first sector identifies the image.
+            byte[] firstSector = image.getWUDDiscReader().readEncryptedToByteArray(0, 0, state.sectorSize);
+            try {
+                if (state.sectorHashes.get(HashUtil.hashSHA1(firstSector), 0) != state.sectorMapping[0]) {
+                    log.info("Checkpoint belongs to another image, starting over.");
+                    return null;
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            state.written = (long) state.curSector * state.sectorSize;
+            state.lastProgress = state.written;
+            state.lastCheckpoint = state.written;
+            return state;
         }
 
-        return Optional.of(outputFile);
+        void printProgress() {
+            lastProgress = written;
+            double readMB = written / 1024.0 / 1024.0;
+            double writtenMB = (outputLength - dataOffset) / 1024.0 / 1024.0;
+            double percent = ((double) written / totalSize) * 100;
+            double ratio = 1 / (writtenMB / readMB);
+            System.out.print(String.format(Locale.ROOT, "\rCompressing into .wux | Progress %.2f%% | Ratio: 1:%.2f | Read: %.2fMB | Written: %.2fMB\t", percent,
+                    ratio, readMB, writtenMB));
+        }
     }
 
     public static boolean compareWUDImage(WUDImage firstImage, WUDImage secondImage) throws IOException {
@@ -228,6 +560,21 @@ public final class WUDService {
     }
 
     public static Optional<File> decompressWUX(WUDImage image, String outputFolder, String filename, boolean overwrite) throws IOException {
+        return decompressWUX(image, outputFolder, filename, overwrite, ExecutionContext.getDefault(), false);
+    }
+
+    /**
+     * Decompresses the image in batches of sectors on up to <code>ioParallelism</code> workers, which write them positionally into the output. Sectors
+     * which are all zero aren't written, they stay holes in the output if the file system supports sparse files.
+     * 
+     * @param split
+     *            write parts of {@link WUDDiscReaderSplitted#WUD_SPLITTED_FILE_SIZE} bytes, named like
+     *            {@link WUDDiscReaderSplitted#WUD_SPLITTED_DEFAULT_FILEPATTERN}, into the output folder instead of <code>filename</code>. Other
+     *            filenames than "game.wud" are ignored with a log message.
+     * @return the output file, or the first part if the output is split
+     */
+    public static Optional<File> decompressWUX(WUDImage image, String outputFolder, String filename, boolean overwrite, ExecutionContext context,
+            boolean split) throws IOException {
         if (!image.isCompressed()) {
             log.info("Given image is already decompressed (a wud file)");
             return Optional.empty();
@@ -238,57 +585,138 @@ public final class WUDService {
             return Optional.empty();
         }
 
+        if (split && filename != null && !filename.equals("game.wud")) {
+            log.info("The filename " + filename + " is ignored, split images are named like " + WUDDiscReaderSplitted.WUD_SPLITTED_DEFAULT_FILEPATTERN);
+        }
+
         String usedOutputFolder = outputFolder;
         if (usedOutputFolder == null) usedOutputFolder = "";
         Utils.createDir(usedOutputFolder);
 
-        String filePath;
-        if (usedOutputFolder.isEmpty()) {
-            filePath = filename;
-        } else {
-            filePath = usedOutputFolder + File.separator + filename;
-        }
-
-        File outputFile = new File(filePath);
-
-        if (outputFile.exists() && !overwrite) {
-            log.info("Couldn't decompress wux, target file already exists (" + outputFile.getAbsolutePath() + ")");
-            return Optional.empty();
+        long totalSize = image.getWUDFileSize();
+        long partSize = split ? WUDDiscReaderSplitted.WUD_SPLITTED_FILE_SIZE : totalSize;
+        int partCount = (int) ((totalSize + partSize - 1) / partSize);
+
+        List<File> outputFiles = new ArrayList<>();
+        for (int i = 0; i < partCount; i++) {
+            String usedFilename = split ? String.format(WUDDiscReaderSplitted.WUD_SPLITTED_DEFAULT_FILEPATTERN, i + 1) : filename;
+            File outputFile = usedOutputFolder.isEmpty() ? new File(usedFilename) : new File(usedOutputFolder + File.separator + usedFilename);
+            if (outputFile.exists() && !overwrite) {
+                log.info("Couldn't decompress wux, target file already exists (" + outputFile.getAbsolutePath() + ")");
+                return Optional.empty();
+            }
+            outputFiles.add(outputFile);
         }
 
-        log.info("Writing decompressed file to: " + outputFile.getAbsolutePath());
-        InputStream in = image.getWUDDiscReader().readEncryptedToStream(0, WUDImage.WUD_FILESIZE);
-        OutputStream out = new FileOutputStream(outputFile);
-
-        int bufferSize = 1024 * 1024;
-        long totalread = 0;
-        byte[] blockBuffer = new byte[bufferSize];
-        ByteArrayBuffer overflow = new ByteArrayBuffer(bufferSize);
-        long curSector = 0;
-        do {
-            int read = StreamUtils.getChunkFromStream(in, blockBuffer, overflow, bufferSize);
+        log.info("Writing decompressed file to: " + outputFiles.get(0).getAbsolutePath());
+        FileChannel[] channels = new FileChannel[partCount];
+        try {
+            for (int i = 0; i < partCount; i++) {
+                // Only new files can be made sparse.
+                Files.deleteIfExists(outputFiles.get(i).toPath());
+                channels[i] = FileChannel.open(outputFiles.get(i).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                        StandardOpenOption.SPARSE);
+            }
 
-            if (read == bufferSize) {
-                out.write(blockBuffer);
-            } else if (read > 0) {
-                out.write(Arrays.copyOfRange(blockBuffer, 0, read));
+            int batchSize = DECOMPRESS_BATCH_SECTORS * WUDImageCompressedInfo.SECTOR_SIZE;
+            List<Long> batches = new ArrayList<>();
+            for (long offset = 0; offset < totalSize; offset += batchSize) {
+                batches.add(offset);
             }
 
-            totalread += read;
+            AtomicReference<IOException> error = new AtomicReference<>();
+            AtomicLong done = new AtomicLong();
+            AtomicLong lastProgress = new AtomicLong();
+            context.forEachIO(batches, offset -> {
+                if (error.get() != null) {
+                    return;
+                }
+                try {
+                    int length = (int) Math.min(batchSize, totalSize - offset);
+                    decompressBatch(image, channels, partSize, offset, length);
+
+                    long curDone = done.addAndGet(length);
+                    long last = lastProgress.get();
+                    if ((curDone - last >= PROGRESS_INTERVAL || curDone == totalSize) && lastProgress.compareAndSet(last, curDone)) {
+                        double readMB = curDone / 1024.0 / 1024.0;
+                        double percent = ((double) curDone / totalSize) * 100;
+                        System.out.print(String.format("\rDecompressing: %.2fMB done (%.2f%%)", readMB, percent));
+                    }
+                } catch (IOException e) {
+                    error.compareAndSet(null, e);
+                }
+            }).join();
+            if (error.get() != null) {
+                throw error.get();
+            }
 
-            curSector++;
-            if (curSector % 1 == 0) {
-                double readMB = totalread / 1024.0 / 1024.0;
-                double percent = ((double) totalread / WUDImage.WUD_FILESIZE) * 100;
-                System.out.print(String.format("\rDecompressing: %.2fMB done (%.2f%%)", readMB, percent));
+            // Holes at the end of a part don't extend the file.
+            for (int i = 0; i < partCount; i++) {
+                long length = Math.min(partSize, totalSize - i * partSize);
+                if (channels[i].size() < length) {
+                    channels[i].write(ByteBuffer.allocate(1), length - 1);
+                }
             }
-        } while (totalread < WUDImage.WUD_FILESIZE);
+        } finally {
+            for (FileChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
         System.out.println();
         log.info("Decompressing done!");
-        in.close();
-        out.close();
 
-        return Optional.of(outputFile);
+        return Optional.of(outputFiles.get(0));
+    }
+
+    private static void decompressBatch(WUDImage image, FileChannel[] channels, long partSize, long offset, int length) throws IOException {
+        int sectorSize = WUDImageCompressedInfo.SECTOR_SIZE;
+        byte[] buffer = BufferPool.getInstance().borrow(DECOMPRESS_BATCH_SECTORS * sectorSize);
+        try {
+            int read = image.getWUDDiscReader().readEncrypted(offset, ByteBuffer.wrap(buffer, 0, length));
+            if (read != length) {
+                throw new EOFException("Unexpected end of the image at " + (offset + read));
+            }
+            // Write the runs of sectors that are not all zero.
+            int runStart = -1;
+            for (int pos = 0; pos <= length; pos += sectorSize) {
+                boolean zero = pos == length || isZero(buffer, pos, Math.min(sectorSize, length - pos));
+                if (!zero && runStart < 0) {
+                    runStart = pos;
+                } else if (zero && runStart >= 0) {
+                    writeToParts(channels, partSize, offset + runStart, buffer, runStart, pos - runStart);
+                    runStart = -1;
+                }
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    private static void writeToParts(FileChannel[] channels, long partSize, long position, byte[] data, int offset, int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            long curPosition = position + written;
+            int part = (int) (curPosition / partSize);
+            long positionInPart = curPosition % partSize;
+            int toWrite = (int) Math.min(length - written, partSize - positionInPart);
+            ByteBuffer src = ByteBuffer.wrap(data, offset + written, toWrite);
+            long partPosition = positionInPart;
+            while (src.hasRemaining()) {
+                partPosition += channels[part].write(src, partPosition);
+            }
+            written += toWrite;
+        }
+    }
+
+    private static boolean isZero(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public static HashResult hashWUDImage(WUDImage image) throws IOException {
@@ -307,8 +735,10 @@ public final class WUDService {
 
         int bufferSize = 1024 * 1024 * 10;
         long totalread = 0;
-        byte[] blockBuffer1 = new byte[bufferSize];
-        ByteArrayBuffer overflow1 = new ByteArrayBuffer(bufferSize);
+        BufferPool pool = BufferPool.getInstance();
+        byte[] blockBuffer1 = pool.borrow(bufferSize);
+        byte[] overflowBuffer1 = pool.borrow(bufferSize);
+        ByteArrayBuffer overflow1 = new ByteArrayBuffer(overflowBuffer1);
         long curSector = 0;
 
         MessageDigest sha1 = null;
@@ -322,29 +752,37 @@ public final class WUDService {
             e.printStackTrace();
         }
 
-        do {
-            int read1 = StreamUtils.getChunkFromStream(in, blockBuffer1, overflow1, bufferSize);
-            sha1.update(blockBuffer1, 0, read1);
-            md5.update(blockBuffer1, 0, read1);
-            checksumEngine.update(blockBuffer1, 0, read1);
-
-            totalread += read1;
+        HashResult result;
+        try {
+            do {
+                int read1 = StreamUtils.getChunkFromStream(in, blockBuffer1, overflow1, bufferSize);
+                if (read1 <= 0) {
+                    throw new EOFException("Unexpected end of the image at " + totalread);
+                }
+                sha1.update(blockBuffer1, 0, read1);
+                md5.update(blockBuffer1, 0, read1);
+                checksumEngine.update(blockBuffer1, 0, read1);
 
-            curSector++;
-            if (curSector % 10 == 0) {
-                double readMB = totalread / 1024.0 / 1024.0;
-                double percent = ((double) totalread / WUDImage.WUD_FILESIZE) * 100;
-                System.out.print(String.format("\rHashing: %.2fMB done (%.2f%%)", readMB, percent));
-            }
-        } while (totalread < WUDImage.WUD_FILESIZE);
-        double readMB = totalread / 1024.0 / 1024.0;
-        double percent = ((double) totalread / WUDImage.WUD_FILESIZE) * 100;
+                totalread += read1;
 
-        log.info(String.format("\rHashing: %.2fMB done (%.2f%%)", readMB, percent));
+                curSector++;
+                if (curSector % 10 == 0) {
+                    double readMB = totalread / 1024.0 / 1024.0;
+                    double percent = ((double) totalread / WUDImage.WUD_FILESIZE) * 100;
+                    System.out.print(String.format("\rHashing: %.2fMB done (%.2f%%)", readMB, percent));
+                }
+            } while (totalread < WUDImage.WUD_FILESIZE);
+            double readMB = totalread / 1024.0 / 1024.0;
+            double percent = ((double) totalread / WUDImage.WUD_FILESIZE) * 100;
 
-        HashResult result = new HashResult(sha1.digest(), md5.digest(), Utils.StringToByteArray(Long.toHexString(checksumEngine.getValue())));
+            log.info(String.format("\rHashing: %.2fMB done (%.2f%%)", readMB, percent));
 
-        in.close();
+            result = new HashResult(sha1.digest(), md5.digest(), Utils.StringToByteArray(Long.toHexString(checksumEngine.getValue())));
+        } finally {
+            in.close();
+            pool.release(blockBuffer1);
+            pool.release(overflowBuffer1);
+        }
 
         return result;
     }
@@ -0,0 +1,46 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus;
+
+import java.util.zip.Deflater;
+
+import de.mas.wiiu.jnus.implementations.wud.WUDImageCompressedInfo;
+import lombok.Data;
+
+/**
+ * Settings for {@link WUDService#compressWUDToWUX(de.mas.wiiu.jnus.implementations.wud.WUDImage, String, String, boolean, WUXCompressionConfig)}.
+ */
+@Data
+public class WUXCompressionConfig {
+    /**
+     * Size of the sectors that are deduplicated, has to be a power of two and at least 0x1000.
+     */
+    private int sectorSize = WUDImageCompressedInfo.SECTOR_SIZE;
+    /**
+     * Stores each sector Deflate compressed, see {@link WUDImageCompressedInfo#FLAG_DEFLATE}. Other tools can't read these images.
+     */
+    private boolean deflate = false;
+    private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+    /**
+     * Number of bytes of the image between two checkpoints, 0 disables the checkpoints. See {@link WUDService#DEFAULT_CHECKPOINT_INTERVAL}.
+     */
+    private long checkpointInterval = 0;
+    /**
+     * Threads used for the compression, the default context is used if none is set.
+     */
+    private ExecutionContext executionContext = null;
+}
@@ -16,23 +16,38 @@
  ****************************************************************************/
 package de.mas.wiiu.jnus.implementations;
 
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.stream.Collectors;
 
+import de.mas.wiiu.jnus.ExecutionContext;
 import de.mas.wiiu.jnus.NUSTitle;
+import de.mas.wiiu.jnus.entities.Ticket;
 import de.mas.wiiu.jnus.entities.content.Content;
 import de.mas.wiiu.jnus.entities.fst.FSTEntry;
 import de.mas.wiiu.jnus.interfaces.FSTDataProvider;
 import de.mas.wiiu.jnus.interfaces.HasNUSTitle;
 import de.mas.wiiu.jnus.interfaces.NUSDataProvider;
+import de.mas.wiiu.jnus.utils.BlockReadChannel;
+import de.mas.wiiu.jnus.utils.BufferPool;
 import de.mas.wiiu.jnus.utils.CheckSumWrongException;
+import de.mas.wiiu.jnus.utils.HashTreeVerifier;
+import de.mas.wiiu.jnus.utils.PositionalInputStream.PositionalReader;
+import de.mas.wiiu.jnus.utils.ReadAheadReader;
 import de.mas.wiiu.jnus.utils.StreamUtils;
 import de.mas.wiiu.jnus.utils.Utils;
+import de.mas.wiiu.jnus.utils.cryptography.DecryptedBlockCache;
+import de.mas.wiiu.jnus.utils.cryptography.DecryptionContextCache;
 import de.mas.wiiu.jnus.utils.cryptography.NUSDecryption;
+import de.mas.wiiu.jnus.utils.cryptography.ParallelCBCDecryption;
+import de.mas.wiiu.jnus.utils.cryptography.ParallelHashedDecryption;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.java.Log;
@@ -42,6 +57,24 @@ public class FSTDataProviderNUSTitle implements FSTDataProvider, HasNUSTitle {
     private final NUSTitle title;
     private final FSTEntry rootEntry;
     @Getter @Setter private String name;
+    /**
+     * If greater than 0, the contents are read, decrypted/verified and written in a pipeline with up to this many chunks in flight between the stages.
+     */
+    @Getter @Setter private int pipelineQueueDepth = 0;
+    /**
+     * Optional cache for decrypted and verified blocks of hashed contents. If set, hashed contents are read block wise and repeated reads are served from
+     * the cache.
+     */
+    @Getter @Setter private DecryptedBlockCache blockCache = null;
+    /**
+     * Threads used for the decryption, the default context is used if none is set.
+     */
+    @Setter private ExecutionContext executionContext = null;
+    /**
+     * Maximum window of the adaptive read-ahead that is used when a content is read sequentially through a channel. The streams don't use it, they are
+     * already read ahead by their pipelines. 0 disables the read-ahead.
+     */
+    @Getter @Setter private int readAheadWindow = ReadAheadReader.DEFAULT_MAX_WINDOW;
 
     public FSTDataProviderNUSTitle(NUSTitle title) throws IOException {
         this.title = title;
@@ -74,6 +107,127 @@ public class FSTDataProviderNUSTitle implements FSTDataProvider, HasNUSTitle {
         }
     }
 
+    public ExecutionContext getExecutionContext() {
+        return executionContext != null ? executionContext : ExecutionContext.getDefault();
+    }
+
+    @Override
+    public SeekableByteChannel openFileChannel(FSTEntry entry) throws IOException {
+        Content c = title.getTMD().getContentByIndex(entry.getContentIndex());
+        if (entry.isNotInPackage() || !c.isEncrypted()) {
+            return FSTDataProvider.super.openFileChannel(entry);
+        }
+        if (!title.getTicket().isPresent()) {
+            throw new IOException("Decryption not possible because no ticket was set.");
+        }
+        Ticket ticket = title.getTicket().get();
+        NUSDataProvider dataProvider = title.getDataProvider();
+
+        if (c.isHashed()) {
+            byte[] h3 = dataProvider.getContentH3Hash(c).orElseThrow(() -> new FileNotFoundException("h3 hash not found."));
+            // Only used while the channel holds its lock.
+            byte[] hashes = new byte[HashTreeVerifier.HASH_SIZE];
+            byte[] encrypted = new byte[HashTreeVerifier.BLOCK_SIZE];
+            DecryptedBlockCache cache = blockCache;
+            long titleID = title.getTMD().getTitleID();
+
+            ReadAheadReader readAhead = createReadAhead(dataProvider, c);
+            PositionalReader reader = readAhead != null ? readAhead : (position, dst) -> dataProvider.read(c, position, dst);
+
+            return new BlockReadChannel((block, buffer) -> {
+                if (cache != null) {
+                    int cached = cache.get(titleID, c, block, buffer, 0);
+                    if (cached >= 0) {
+                        return cached;
+                    }
+                }
+                readContentFully(reader, c, block * HashTreeVerifier.BLOCK_SIZE, encrypted, 0, HashTreeVerifier.BLOCK_SIZE);
+                NUSDecryption nusdecryption = DecryptionContextCache.borrow(ticket.getDecryptedKey(), ticket.getIV());
+                try {
+                    nusdecryption.decryptHashedBlock(encrypted, 0, hashes, buffer, 0, block, h3);
+                } catch (CheckSumWrongException | NoSuchAlgorithmException e) {
+                    throw new IOException(e);
+                } finally {
+                    DecryptionContextCache.release(nusdecryption);
+                }
+                if (cache != null) {
+                    cache.put(titleID, c, block, buffer, 0, HashTreeVerifier.DATA_SIZE);
+                }
+                return HashTreeVerifier.DATA_SIZE;
+            }, entry.getFileOffset(), entry.getFileSize(), HashTreeVerifier.DATA_SIZE, readAhead);
+        }
+
+        int blockSize = 0x8000;
+        byte[] contentIV = new byte[0x10];
+        contentIV[0] = (byte) ((c.getIndex() >> 8) & 0xFF);
+        contentIV[1] = (byte) (c.getIndex() & 0xFF);
+        // The previous 16 bytes of a block followed by the block, only used while the channel holds its lock.
+        byte[] encrypted = new byte[16 + blockSize];
+        ReadAheadReader readAhead = createReadAhead(dataProvider, c);
+        PositionalReader reader = readAhead != null ? readAhead : (position, dst) -> dataProvider.read(c, position, dst);
+
+        return new BlockReadChannel((block, buffer) -> {
+            long offset = block * blockSize;
+            int length = (int) Math.min(blockSize, c.getEncryptedFileSizeAligned() - offset);
+            if (length <= 0) {
+                throw new IOException("Block " + block + " is out of bounds");
+            }
+            if (block == 0) {
+                readContentFully(reader, c, 0, encrypted, 16, length);
+            } else {
+                // The previous 16 bytes are the IV of this block.
+                readContentFully(reader, c, offset - 16, encrypted, 0, length + 16);
+            }
+            NUSDecryption nusdecryption = DecryptionContextCache.borrow(ticket.getDecryptedKey(), ticket.getIV());
+            try {
+                nusdecryption.decrypt(encrypted, 16, length, buffer, 0, block == 0 ? contentIV : encrypted, 0);
+            } finally {
+                DecryptionContextCache.release(nusdecryption);
+            }
+            return length;
+        }, entry.getFileOffset(), entry.getFileSize(), blockSize, readAhead);
+    }
+
+    private ReadAheadReader createReadAhead(NUSDataProvider dataProvider, Content c) {
+        if (readAheadWindow <= 0) {
+            return null;
+        }
+        return new ReadAheadReader((position, dst) -> dataProvider.read(c, position, dst), getExecutionContext().getIoExecutor(), readAheadWindow);
+    }
+
+    private static void readContentFully(PositionalReader reader, Content c, long position, byte[] buffer, int offset, int length) throws IOException {
+        int read = reader.read(position, ByteBuffer.wrap(buffer, offset, length));
+        if (read != length) {
+            throw new EOFException("Unexpected end of content " + c.getFilename() + " at " + (position + read));
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the file ended before <code>size</code> bytes have been written
+     */
+    private boolean readFileFromChannel(FSTEntry entry, OutputStream outputStream, long offset, long size) throws IOException {
+        byte[] array = BufferPool.getInstance().borrow(0x8000);
+        long remaining = size;
+        try (SeekableByteChannel channel = openFileChannel(entry)) {
+            channel.position(offset);
+            ByteBuffer buffer = ByteBuffer.wrap(array);
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                outputStream.write(buffer.array(), 0, read);
+                remaining -= read;
+            }
+        } finally {
+            outputStream.close();
+            BufferPool.getInstance().release(array);
+        }
+        return remaining == 0;
+    }
+
     private boolean decryptFSTEntryToStreamHashed(FSTEntry entry, OutputStream outputStream, long offset, long size)
             throws IOException, CheckSumWrongException, NoSuchAlgorithmException {
         Content c = title.getTMD().getContentByIndex(entry.getContentIndex());
@@ -100,11 +254,26 @@ public class FSTDataProviderNUSTitle implements FSTDataProvider, HasNUSTitle {
         }
 
         NUSDataProvider dataProvider = title.getDataProvider();
-        InputStream in = dataProvider.readContentAsStream(c, streamOffset, streamFilesize);
+        InputStream in = dataProvider.openContentStream(c, streamOffset, streamFilesize);
 
-        NUSDecryption nusdecryption = new NUSDecryption(title.getTicket().get());
+        Ticket ticket = title.getTicket().get();
+        if (pipelineQueueDepth > 0) {
+            try {
+                byte[] h3 = dataProvider.getContentH3Hash(c).orElseThrow(() -> new FileNotFoundException("h3 hash not found."));
+                new ParallelHashedDecryption(ticket.getDecryptedKey(), getExecutionContext(), pipelineQueueDepth,
+                        ParallelHashedDecryption.DEFAULT_BLOCKS_PER_TASK).decryptFileStreamHashed(in, outputStream, payloadOffset, size, h3);
+            } finally {
+                StreamUtils.closeAll(in, outputStream);
+            }
+            return true;
+        }
 
-        return nusdecryption.decryptStreamsHashed(in, outputStream, payloadOffset, size, dataProvider.getContentH3Hash(c));
+        NUSDecryption nusdecryption = DecryptionContextCache.borrow(ticket.getDecryptedKey(), ticket.getIV());
+        try {
+            return nusdecryption.decryptStreamsHashed(in, outputStream, payloadOffset, size, dataProvider.getContentH3Hash(c), getExecutionContext());
+        } finally {
+            DecryptionContextCache.release(nusdecryption);
+        }
     }
 
     private boolean decryptFSTEntryToStreamNonHashed(FSTEntry entry, OutputStream outputStream, long offset, long size)
@@ -118,22 +287,21 @@ public class FSTDataProviderNUSTitle implements FSTDataProvider, HasNUSTitle {
 
         long payloadOffset = entry.getFileOffset() + offset;
         long streamOffset = payloadOffset;
-        long streamFilesize = c.getEncryptedFileSize();
+        long streamFilesize = c.getEncryptedFileSizeAligned();
 
         // if we have an offset we can't calculate the hash anymore
         // we need a new IV
         if (streamOffset > 0) {
-            streamFilesize = size;
-
             streamOffset -= 16;
-            streamFilesize += 16;
+            // The previous 16 bytes are the IV, the last block has to be read completely.
+            streamFilesize = Math.min(Utils.align(size, 16) + 16, c.getEncryptedFileSizeAligned() - streamOffset);
 
             // We need to get the current IV as soon as we get the InputStream.
             IV = null;
         }
 
         NUSDataProvider dataProvider = title.getDataProvider();
-        InputStream in = dataProvider.readContentAsStream(c, streamOffset, streamFilesize);
+        InputStream in = dataProvider.openContentStream(c, streamOffset, streamFilesize);
 
         if (IV == null) {
             // If we read with an offset > 16 we need the previous 16 bytes because they are the IV.
@@ -151,9 +319,21 @@ public class FSTDataProviderNUSTitle implements FSTDataProvider, HasNUSTitle {
             }
             IV = Arrays.copyOfRange(data, 0, toRead);
         }
-        NUSDecryption nusdecryption = new NUSDecryption(title.getTicket().get());
+        Ticket ticket = title.getTicket().get();
+        if (pipelineQueueDepth > 0) {
+            // Ignore the h3hash if we don't read the whole file.
+            byte[] h3Hash = size != entry.getFileSize() ? null : c.getSHA2Hash();
+            new ParallelCBCDecryption(ticket.getDecryptedKey(), getExecutionContext(), pipelineQueueDepth, ParallelCBCDecryption.DEFAULT_SEGMENT_SIZE)
+                    .decryptFileStream(in, outputStream, size, IV, h3Hash, c.getEncryptedFileSize());
+            return true;
+        }
 
-        return nusdecryption.decryptStreamsNonHashed(in, outputStream, payloadOffset, size, c, IV, size != entry.getFileSize());
+        NUSDecryption nusdecryption = DecryptionContextCache.borrow(ticket.getDecryptedKey(), ticket.getIV());
+        try {
+            return nusdecryption.decryptStreamsNonHashed(in, outputStream, payloadOffset, size, c, IV, size != entry.getFileSize(), getExecutionContext());
+        } finally {
+            DecryptionContextCache.release(nusdecryption);
+        }
     }
 
     private boolean decryptFSTEntryToStream(FSTEntry entry, OutputStream outputStream, long offset, long size)
@@ -165,10 +345,6 @@ public class FSTDataProviderNUSTitle implements FSTDataProvider, HasNUSTitle {
             outputStream.close();
             return false;
         }
-        if (offset % 16 != 0) {
-            throw new IOException("The offset for decryption need to be aligned to 16");
-        }
-
         Content c = title.getTMD().getContentByIndex(entry.getContentIndex());
 
         try {
@@ -178,13 +354,17 @@ public class FSTDataProviderNUSTitle implements FSTDataProvider, HasNUSTitle {
                     outputStream.close();
                     return false;
                 }
+                if (offset % 16 != 0 || (blockCache != null && c.isHashed())) {
+                    // The streams can only be decrypted from aligned offsets and don't use the block cache.
+                    return readFileFromChannel(entry, outputStream, offset, size);
+                }
                 if (c.isHashed()) {
                     return decryptFSTEntryToStreamHashed(entry, outputStream, offset, size);
                 } else {
                     return decryptFSTEntryToStreamNonHashed(entry, outputStream, offset, size);
                 }
             } else {
-                InputStream in = title.getDataProvider().readContentAsStream(c, offset, size);
+                InputStream in = title.getDataProvider().openContentStream(c, offset, size);
 
                 try {
                     StreamUtils.saveInputStreamToOutputStreamWithHash(in, outputStream, size, c.getSHA2Hash(), c.getEncryptedFileSize(),
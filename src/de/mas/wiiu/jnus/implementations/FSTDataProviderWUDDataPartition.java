@@ -20,17 +20,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import de.mas.wiiu.jnus.ExecutionContext;
 import de.mas.wiiu.jnus.entities.content.ContentFSTInfo;
 import de.mas.wiiu.jnus.entities.fst.FSTEntry;
 import de.mas.wiiu.jnus.implementations.wud.parser.WUDDataPartition;
 import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReader;
 import de.mas.wiiu.jnus.interfaces.FSTDataProvider;
 import de.mas.wiiu.jnus.utils.FSTUtils;
+import lombok.Setter;
 
 public class FSTDataProviderWUDDataPartition implements FSTDataProvider {
     private final WUDDataPartition partition;
     private final WUDDiscReader discReader;
     private final byte[] titleKey;
+    /**
+     * Threads used for the decryption, the default context is used if none is set.
+     */
+    @Setter private ExecutionContext executionContext = null;
 
     public FSTDataProviderWUDDataPartition(WUDDataPartition partition, WUDDiscReader discReader, byte[] titleKey) {
         this.partition = partition;
@@ -56,7 +62,11 @@ public class FSTDataProviderWUDDataPartition implements FSTDataProvider {
             return discReader.readEncryptedToStream(out, partition.getPartitionOffset() + info.getOffset() + entry.getFileOffset() + offset, size);
         }
         return discReader.readDecryptedToOutputStream(out, partition.getPartitionOffset() + info.getOffset(), entry.getFileOffset() + offset, size, titleKey,
-                null, false);
+                null, false, getExecutionContext());
+    }
+
+    public ExecutionContext getExecutionContext() {
+        return executionContext != null ? executionContext : ExecutionContext.getDefault();
     }
 
     @Override
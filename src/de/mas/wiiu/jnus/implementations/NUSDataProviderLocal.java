@@ -21,12 +21,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.Optional;
 
 import de.mas.wiiu.jnus.Settings;
 import de.mas.wiiu.jnus.entities.content.Content;
 import de.mas.wiiu.jnus.interfaces.NUSDataProvider;
+import de.mas.wiiu.jnus.utils.FileChannelCache;
 import de.mas.wiiu.jnus.utils.FileUtils;
 import de.mas.wiiu.jnus.utils.StreamUtils;
 import lombok.Getter;
@@ -35,6 +37,7 @@ import lombok.extern.java.Log;
 @Log
 public final class NUSDataProviderLocal implements NUSDataProvider {
     @Getter private final String localPath;
+    private final FileChannelCache<Integer> channels = new FileChannelCache<>();
 
     public NUSDataProviderLocal(String localPath) {
         this.localPath = localPath;
@@ -44,19 +47,33 @@ public final class NUSDataProviderLocal implements NUSDataProvider {
         return getLocalPath() + File.separator + c.getFilename();
     }
 
-    @Override
-    public InputStream readContentAsStream(Content content, long offset, long size) throws IOException {
+    private File getContentFile(Content content) throws FileNotFoundException {
         File filepath = FileUtils.getFileIgnoringFilenameCases(getLocalPath(), content.getFilename());
         if (filepath == null || !filepath.exists()) {
             String errormsg = "Couldn't open \"" + getLocalPath() + File.separator + content.getFilename() + "\", file does not exist";
             log.warning(errormsg);
             throw new FileNotFoundException(errormsg);
         }
-        InputStream in = new FileInputStream(filepath);
+        return filepath;
+    }
+
+    @Override
+    public InputStream readContentAsStream(Content content, long offset, long size) throws IOException {
+        InputStream in = new FileInputStream(getContentFile(content));
         StreamUtils.skipExactly(in, offset);
         return in;
     }
 
+    @Override
+    public int read(Content content, long position, ByteBuffer dst) throws IOException {
+        return channels.read(content.getID(), () -> getContentFile(content), position, dst);
+    }
+
+    @Override
+    public boolean isPositionalReadSupported() {
+        return true;
+    }
+
     @Override
     public Optional<byte[]> getContentH3Hash(Content content) throws IOException {
         String h3Filename = String.format("%08X%s", content.getID(), Settings.H3_EXTENTION);
@@ -105,7 +122,7 @@ public final class NUSDataProviderLocal implements NUSDataProvider {
 
     @Override
     public void cleanup() throws IOException {
-        // We don't need this
+        channels.close();
     }
 
     @Override
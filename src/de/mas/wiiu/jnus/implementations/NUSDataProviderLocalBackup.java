@@ -21,18 +21,21 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.Optional;
 
 import de.mas.wiiu.jnus.Settings;
 import de.mas.wiiu.jnus.entities.content.Content;
 import de.mas.wiiu.jnus.interfaces.NUSDataProvider;
+import de.mas.wiiu.jnus.utils.FileChannelCache;
 import de.mas.wiiu.jnus.utils.StreamUtils;
 import lombok.Getter;
 
 public class NUSDataProviderLocalBackup implements NUSDataProvider {
     @Getter private final String localPath;
     private final short titleVersion;
+    private final FileChannelCache<Integer> channels = new FileChannelCache<>();
 
     public NUSDataProviderLocalBackup(String localPath) {
         this(localPath, (short) Settings.LATEST_TMD_VERSION);
@@ -47,17 +50,31 @@ public class NUSDataProviderLocalBackup implements NUSDataProvider {
         return getLocalPath() + File.separator + c.getFilename();
     }
 
-    @Override
-    public InputStream readContentAsStream(Content content, long offset, long size) throws IOException {
+    private File getContentFile(Content content) throws FileNotFoundException {
         File filepath = new File(getFilePathOnDisk(content));
         if (!filepath.exists()) {
             throw new FileNotFoundException(filepath.getAbsolutePath() + " was not found.");
         }
-        InputStream in = new FileInputStream(filepath);
+        return filepath;
+    }
+
+    @Override
+    public InputStream readContentAsStream(Content content, long offset, long size) throws IOException {
+        InputStream in = new FileInputStream(getContentFile(content));
         StreamUtils.skipExactly(in, offset);
         return in;
     }
 
+    @Override
+    public int read(Content content, long position, ByteBuffer dst) throws IOException {
+        return channels.read(content.getID(), () -> getContentFile(content), position, dst);
+    }
+
+    @Override
+    public boolean isPositionalReadSupported() {
+        return true;
+    }
+
     @Override
     public Optional<byte[]> getContentH3Hash(Content content) throws IOException {
         String h3Path = getLocalPath() + File.separator + String.format("%08X.h3", content.getID());
@@ -95,7 +112,7 @@ public class NUSDataProviderLocalBackup implements NUSDataProvider {
 
     @Override
     public void cleanup() throws IOException {
-        // We don't need this
+        channels.close();
     }
 
     @Override
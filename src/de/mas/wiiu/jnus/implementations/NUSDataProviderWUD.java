@@ -18,6 +18,7 @@ package de.mas.wiiu.jnus.implementations;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Optional;
 
 import de.mas.wiiu.jnus.entities.content.Content;
@@ -63,6 +64,16 @@ public class NUSDataProviderWUD implements NUSDataProvider {
         return discReader.readEncryptedToStream(offset, size);
     }
 
+    @Override
+    public int read(Content content, long position, ByteBuffer dst) throws IOException {
+        return getDiscReader().readEncrypted(getOffsetInWUD(content) + position, dst);
+    }
+
+    @Override
+    public boolean isPositionalReadSupported() {
+        return getDiscReader().isPositionalReadSupported();
+    }
+
     @Override
     public Optional<byte[]> getContentH3Hash(Content content) throws IOException {
         if (!getGamePartitionHeader().isCalculatedHashes()) {
@@ -19,15 +19,12 @@ package de.mas.wiiu.jnus.implementations.wud;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.Map;
 
 import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReader;
 import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReaderCompressed;
+import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReaderMapped;
 import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReaderSplitted;
 import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReaderUncompressed;
-import de.mas.wiiu.jnus.utils.ByteUtils;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.java.Log;
@@ -46,6 +43,14 @@ public class WUDImage {
     @Getter private final WUDDiscReader WUDDiscReader;
 
     public WUDImage(File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * @param memoryMapped
+     *            read uncompressed, not splitted images through memory mappings, see {@link WUDDiscReaderMapped}
+     */
+    public WUDImage(File file, boolean memoryMapped) throws IOException {
         if (file == null || !file.exists()) {
             log.info("WUD file is null or does not exist");
             System.exit(1);
@@ -61,18 +66,23 @@ public class WUDImage {
             log.fine("Image is compressed");
             this.isCompressed = true;
             this.isSplitted = false;
-            Map<Integer, Long> indexTable = new HashMap<>();
             long offsetIndexTable = compressedInfo.getOffsetIndexTable();
             fileStream.seek(offsetIndexTable);
 
             byte[] tableData = new byte[(int) (compressedInfo.getIndexTableEntryCount() * 0x04)];
-            fileStream.read(tableData);
-            int cur_offset = 0x00;
-            for (long i = 0; i < compressedInfo.getIndexTableEntryCount(); i++) {
-                indexTable.put((int) i, ByteUtils.getUnsingedIntFromBytes(tableData, (int) cur_offset, ByteOrder.LITTLE_ENDIAN));
-                cur_offset += 0x04;
+            fileStream.readFully(tableData);
+            compressedInfo.setIndexTable(tableData);
+            if (compressedInfo.isDeflated()) {
+                long tableLength = file.length() - compressedInfo.getOffsetSectorOffsetTable();
+                if (compressedInfo.getOffsetSectorOffsetTable() <= 0 || tableLength < 0x08 || tableLength % 0x08 != 0 || tableLength > Integer.MAX_VALUE) {
+                    fileStream.close();
+                    throw new IOException("Invalid sector offset table in " + file.getAbsolutePath());
+                }
+                byte[] offsetData = new byte[(int) tableLength];
+                fileStream.seek(compressedInfo.getOffsetSectorOffsetTable());
+                fileStream.readFully(offsetData);
+                compressedInfo.setSectorOffsets(offsetData);
             }
-            compressedInfo.setIndexTable(indexTable);
             setCompressedInfo(compressedInfo);
         } else {
             this.isCompressed = false;
@@ -85,16 +95,18 @@ public class WUDImage {
             }
         }
 
+        fileStream.close();
+        this.fileHandle = file;
+
         if (isCompressed()) {
             this.WUDDiscReader = new WUDDiscReaderCompressed(this);
         } else if (isSplitted()) {
             this.WUDDiscReader = new WUDDiscReaderSplitted(this);
+        } else if (memoryMapped) {
+            this.WUDDiscReader = new WUDDiscReaderMapped(this);
         } else {
             this.WUDDiscReader = new WUDDiscReaderUncompressed(this);
         }
-
-        fileStream.close();
-        this.fileHandle = file;
     }
 
     public long getWUDFileSize() {
@@ -18,8 +18,6 @@ package de.mas.wiiu.jnus.implementations.wud;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.Map;
 
 import de.mas.wiiu.jnus.utils.ByteUtils;
 import lombok.Getter;
@@ -32,6 +30,11 @@ public class WUDImageCompressedInfo {
     public static final int WUX_MAGIC_0 = 0x30585557;
     public static final int WUX_MAGIC_1 = 0x1099d02e;
     public static final int SECTOR_SIZE = 0x8000;
+    /**
+     * The stored sectors are compressed with Deflate (zlib format) each, sectors that didn't get smaller are stored as they are. Their offsets follow the
+     * sectors, the header points to this table at 0x18. An offset table entry past the last sector marks the end of it.
+     */
+    public static final int FLAG_DEFLATE = 0x01;
 
     @Getter private final int sectorSize;
     @Getter private final long uncompressedSize;
@@ -41,10 +44,14 @@ public class WUDImageCompressedInfo {
     @Getter private final long offsetIndexTable = WUX_HEADER_SIZE;
     @Getter @Setter private long offsetSectorArray;
     @Getter @Setter private long indexTableSize;
+    /** Offset of the sector offset table, only used if {@link #FLAG_DEFLATE} is set. */
+    @Getter @Setter private long offsetSectorOffsetTable;
 
     private final boolean valid;
 
-    @Getter private Map<Integer, Long> indexTable = new HashMap<>();
+    /** Physical sector of each logical sector, the entries are unsigned. */
+    @Getter private int[] indexTable = new int[0];
+    private long[] sectorOffsets = new long[0];
 
     public WUDImageCompressedInfo(byte[] headData) {
         if (headData.length < WUX_HEADER_SIZE) {
@@ -61,6 +68,7 @@ public class WUDImageCompressedInfo {
         this.sectorSize = ByteUtils.getIntFromBytes(headData, 0x08, ByteOrder.LITTLE_ENDIAN);
         this.flags = ByteUtils.getIntFromBytes(headData, 0x0C, ByteOrder.LITTLE_ENDIAN);
         this.uncompressedSize = ByteUtils.getLongFromBytes(headData, 0x10, ByteOrder.LITTLE_ENDIAN);
+        this.offsetSectorOffsetTable = ByteUtils.getLongFromBytes(headData, 0x18, ByteOrder.LITTLE_ENDIAN);
 
         if (valid) {
             calculateOffsets();
@@ -95,14 +103,56 @@ public class WUDImageCompressedInfo {
         return valid;
     }
 
+    public boolean isDeflated() {
+        return (flags & FLAG_DEFLATE) != 0;
+    }
+
     public long getSectorIndex(int sectorIndex) {
-        return getIndexTable().get(sectorIndex);
+        return indexTable[sectorIndex] & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the offset of a stored sector in the file.
+     */
+    public long getStoredSectorOffset(long realSectorIndex) {
+        if (isDeflated()) {
+            return sectorOffsets[(int) realSectorIndex];
+        }
+        return getOffsetSectorArray() + realSectorIndex * getSectorSize();
+    }
+
+    /**
+     * Returns the length of a stored sector. If it's shorter than the sector size, the sector is deflated.
+     */
+    public int getStoredSectorLength(long realSectorIndex) {
+        if (isDeflated()) {
+            return (int) (sectorOffsets[(int) realSectorIndex + 1] - sectorOffsets[(int) realSectorIndex]);
+        }
+        return getSectorSize();
+    }
+
+    /**
+     * Parses the sector offset table of deflated images as it is stored in the file.
+     */
+    public void setSectorOffsets(byte[] tableData) {
+        long[] offsets = new long[tableData.length / 0x08];
+        ByteBuffer.wrap(tableData).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(offsets);
+        this.sectorOffsets = offsets;
     }
 
-    public void setIndexTable(Map<Integer, Long> indexTable) {
+    public void setIndexTable(int[] indexTable) {
         this.indexTable = indexTable;
     }
 
+    /**
+     * Parses the index table as it is stored in the file.
+     */
+    public void setIndexTable(byte[] tableData) {
+        int[] table = new int[tableData.length / 0x04];
+        ByteBuffer.wrap(tableData).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(table);
+        setIndexTable(table);
+    }
+
     public byte[] getHeaderAsBytes() {
         ByteBuffer result = ByteBuffer.allocate(WUX_HEADER_SIZE);
         result.order(ByteOrder.LITTLE_ENDIAN);
@@ -111,6 +161,7 @@ public class WUDImageCompressedInfo {
         result.putInt(getSectorSize());
         result.putInt(getFlags());
         result.putLong(getUncompressedSize());
+        result.putLong(getOffsetSectorOffsetTable());
         return result.array();
     }
 }
@@ -17,59 +17,153 @@
 package de.mas.wiiu.jnus.implementations.wud.reader;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import de.mas.wiiu.jnus.ExecutionContext;
 import de.mas.wiiu.jnus.implementations.wud.WUDImage;
-import de.mas.wiiu.jnus.utils.PipedInputStreamWithException;
+import de.mas.wiiu.jnus.utils.BufferPool;
+import de.mas.wiiu.jnus.utils.CheckSumWrongException;
+import de.mas.wiiu.jnus.utils.RingBufferInputStream;
+import de.mas.wiiu.jnus.utils.StreamPipeline;
 import de.mas.wiiu.jnus.utils.StreamUtils;
+import de.mas.wiiu.jnus.utils.Utils;
 import de.mas.wiiu.jnus.utils.cryptography.AESDecryption;
+import de.mas.wiiu.jnus.utils.cryptography.DecryptionContextCache;
+import de.mas.wiiu.jnus.utils.cryptography.NUSDecryption;
 import lombok.Getter;
 import lombok.extern.java.Log;
 
 @Log
 public abstract class WUDDiscReader {
+    private static final int DECRYPTED_CHUNK_SIZE = 0x10000;
+    private static final int PARALLEL_BLOCKS_PER_TASK = 4;
+    // Ranges with at least this many blocks are decrypted on multiple threads.
+    private static final long PARALLEL_MIN_BLOCKS = 0x20;
+
     @Getter private final WUDImage image;
+    @Getter private volatile WUDSectorCache sectorCache = null;
 
     public WUDDiscReader(WUDImage image) {
         this.image = image;
     }
 
     public byte[] readEncryptedToByteArray(long offset, long fileoffset, long size) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        readEncryptedToStream(out, offset + fileoffset, size);
-        return out.toByteArray();
+        byte[] result = new byte[(int) size];
+        int read = readEncryptedCached(offset + fileoffset, ByteBuffer.wrap(result));
+        return read == result.length ? result : Arrays.copyOf(result, read);
     }
 
     public byte[] readDecryptedToByteArray(long offset, long fileoffset, long size, byte[] key, byte[] IV, boolean useFixedIV) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-        readDecryptedToOutputStream(out, offset, fileoffset, size, key, IV, useFixedIV);
+        readDecryptedToOutputStream(out, offset, fileoffset, size, key, IV, useFixedIV, ExecutionContext.getDefault(), true);
         return out.toByteArray();
     }
 
     public abstract boolean readEncryptedToStream(OutputStream out, long offset, long size) throws IOException;
 
     public InputStream readEncryptedToStream(long offset, long size) throws IOException {
-        PipedOutputStream out = new PipedOutputStream();
-        PipedInputStreamWithException in = new PipedInputStreamWithException(out, 0x8000);
-
-        new Thread(() -> {
-            try {
-                readEncryptedToStream(out, offset, size);
-                in.throwException(null);
-            } catch (Exception e) {
-                in.throwException(e);
+        return RingBufferInputStream.start(RingBufferInputStream.DEFAULT_BUFFER_SIZE, out -> readEncryptedToStream(out, offset, size));
+    }
+
+    /**
+     * Attaches a cache for the raw sectors of this image, <code>null</code> removes it. Only the metadata reads opt in, that are small reads through
+     * {@link #readEncryptedCached(long, ByteBuffer)}, {@link #readEncryptedToByteArray(long, long, long)} and
+     * {@link #readDecryptedToByteArray(long, long, long, byte[], byte[], boolean)}. Contents, streams and {@link #readEncrypted(long, ByteBuffer)} bypass it.
+     * 
+     * @throws IllegalArgumentException
+     *             if the cache is already used for another image
+     */
+    public void setSectorCache(WUDSectorCache sectorCache) {
+        if (sectorCache != null) {
+            File file = getImage().getFileHandle();
+            sectorCache.bind(file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified());
+        }
+        this.sectorCache = sectorCache;
+    }
+
+    /**
+     * Reads the raw image from the given offset until <code>dst</code> is full or the end of the image has been reached. The sector cache is not used.
+     * 
+     * @return number of bytes read
+     */
+    public int readEncrypted(long offset, ByteBuffer dst) throws IOException {
+        return readEncryptedDirect(offset, dst);
+    }
+
+    /**
+     * Like {@link #readEncrypted(long, ByteBuffer)}, but small reads are served from and added to the sector cache. Meant for metadata like partition
+     * headers and the FST which are read more than once.
+     * 
+     * @return number of bytes read
+     */
+    public int readEncryptedCached(long offset, ByteBuffer dst) throws IOException {
+        WUDSectorCache cache = sectorCache;
+        if (cache == null || dst.remaining() > WUDSectorCache.MAX_CACHED_READ_SIZE) {
+            return readEncryptedDirect(offset, dst);
+        }
+        int total = 0;
+        byte[] sector = null;
+        try {
+            while (dst.hasRemaining()) {
+                long curOffset = offset + total;
+                long sectorIndex = curOffset / WUDSectorCache.SECTOR_SIZE;
+                int offsetInSector = (int) (curOffset % WUDSectorCache.SECTOR_SIZE);
+                int read = cache.read(sectorIndex, offsetInSector, dst);
+                if (read < 0) {
+                    if (sector == null) {
+                        sector = BufferPool.getInstance().borrow(WUDSectorCache.SECTOR_SIZE);
+                    }
+                    int length = readEncryptedDirect(sectorIndex * WUDSectorCache.SECTOR_SIZE, ByteBuffer.wrap(sector, 0, WUDSectorCache.SECTOR_SIZE));
+                    cache.put(sectorIndex, sector, 0, length);
+                    read = Math.max(0, Math.min(length - offsetInSector, dst.remaining()));
+                    dst.put(sector, offsetInSector, read);
+                }
+                if (read == 0) {
+                    break;
+                }
+                total += read;
+            }
+        } finally {
+            if (sector != null) {
+                BufferPool.getInstance().release(sector);
             }
-        }).start();
+        }
+        return total;
+    }
+
+    /**
+     * Reads the raw image without the sector cache. The default implementation uses {@link #readEncryptedToStream(long, long)}, readers that can read
+     * positionally override this and {@link #isPositionalReadSupported()}.
+     * 
+     * @return number of bytes read
+     */
+    protected int readEncryptedDirect(long offset, ByteBuffer dst) throws IOException {
+        InputStream in = readEncryptedToStream(offset, dst.remaining());
+        try {
+            return StreamUtils.readFully(in, dst);
+        } finally {
+            in.close();
+        }
+    }
 
-        return in;
+    public boolean isPositionalReadSupported() {
+        return false;
+    }
+
+    /**
+     * Releases the resources that are kept open between reads.
+     */
+    public void close() throws IOException {
+        // Nothing to do by default.
     }
 
     /**
@@ -82,59 +176,90 @@ public abstract class WUDDiscReader {
      * @throws IOException
      */
     public byte[] readDecryptedChunk(long readOffset, byte[] key, byte[] IV) throws IOException {
-        int chunkSize = 0x10000;
-
-        byte[] encryptedChunk = readEncryptedToByteArray(readOffset, 0, chunkSize);
-        byte[] decryptedChunk = new byte[chunkSize];
+        byte[] decryptedChunk = new byte[DECRYPTED_CHUNK_SIZE];
+        readDecryptedRange(readOffset, decryptedChunk, 0, DECRYPTED_CHUNK_SIZE, key, IV, false);
+        return decryptedChunk;
+    }
 
-        AESDecryption aesDecryption = new AESDecryption(key, IV);
-        decryptedChunk = aesDecryption.decrypt(encryptedChunk);
+    /**
+     * Decrypts the range <code>[from, to)</code> of the 0x10000 chunk at <code>readOffset</code> into the same range of the buffer. Only the 16 byte aligned
+     * part which covers the range is read, the 16 bytes in front of it are used as IV.
+     * 
+     * @return start of the decrypted data in the buffer, <code>from</code> aligned down to 16
+     */
+    private int readDecryptedRange(long readOffset, byte[] buffer, int from, int to, byte[] key, byte[] IV, boolean cached) throws IOException {
+        int start = from & ~(AESDecryption.AES_BLOCK_SIZE - 1);
+        int end = (int) Utils.align(to, AESDecryption.AES_BLOCK_SIZE);
+        int readStart = start == 0 ? 0 : start - AESDecryption.AES_BLOCK_SIZE;
 
-        return decryptedChunk;
+        ByteBuffer dst = ByteBuffer.wrap(buffer, readStart, end - readStart);
+        int read = cached ? readEncryptedCached(readOffset + readStart, dst) : readEncrypted(readOffset + readStart, dst);
+        if (read != end - readStart) {
+            throw new EOFException("Unexpected end of the image at " + (readOffset + readStart + read));
+        }
+        // The previous ciphertext block is the IV, it's not touched by decrypting in place.
+        byte[] usedIV = start == 0 ? IV : buffer;
+        int IVOffset = start == 0 ? 0 : start - AESDecryption.AES_BLOCK_SIZE;
+        NUSDecryption decryption = DecryptionContextCache.borrow(key, IV);
+        try {
+            decryption.decrypt(buffer, start, end - start, buffer, start, usedIV, IVOffset);
+        } finally {
+            DecryptionContextCache.release(decryption);
+        }
+        return start;
     }
 
     public boolean readDecryptedToOutputStream(OutputStream outputStream, long clusterOffset, long fileOffset, long size, byte[] key, byte[] IV,
             boolean useFixedIV) throws IOException {
-        byte[] usedIV = null;
-        if (useFixedIV) {
+        return readDecryptedToOutputStream(outputStream, clusterOffset, fileOffset, size, key, IV, useFixedIV, ExecutionContext.getDefault());
+    }
+
+    /**
+     * Decrypts the given range of a cluster. Each 0x10000 block is decrypted on its own, so if the context is parallel and the range spans multiple blocks
+     * the blocks are decrypted concurrently on the CPU executor and written in order. Small ranges are always decrypted on the calling thread.
+     */
+    public boolean readDecryptedToOutputStream(OutputStream outputStream, long clusterOffset, long fileOffset, long size, byte[] key, byte[] IV,
+            boolean useFixedIV, ExecutionContext context) throws IOException {
+        return readDecryptedToOutputStream(outputStream, clusterOffset, fileOffset, size, key, IV, useFixedIV, context, false);
+    }
+
+    private boolean readDecryptedToOutputStream(OutputStream outputStream, long clusterOffset, long fileOffset, long size, byte[] key, byte[] IV,
+            boolean useFixedIV, ExecutionContext context, boolean cached) throws IOException {
+        long blockCount = (fileOffset % DECRYPTED_CHUNK_SIZE + size + DECRYPTED_CHUNK_SIZE - 1) / DECRYPTED_CHUNK_SIZE;
+        if (context.getCpuParallelism() > 1 && blockCount >= PARALLEL_MIN_BLOCKS) {
+            return readDecryptedToOutputStreamParallel(outputStream, clusterOffset, fileOffset, size, key, IV, useFixedIV, context);
+        }
+
+        byte[] usedIV = new byte[0x10];
+        if (useFixedIV && IV != null) {
             usedIV = IV;
-            if (IV == null) {
-                usedIV = new byte[0x10];
-            }
         }
 
         long usedSize = size;
         long usedFileOffset = fileOffset;
-        byte[] buffer;
-
-        long maxCopySize;
-        long copySize;
 
-        long readOffset;
-
-        final int BLOCK_SIZE = 0x10000;
         long totalread = 0;
 
+        byte[] buffer = BufferPool.getInstance().borrow(DECRYPTED_CHUNK_SIZE);
         try {
             do {
-                long blockNumber = (usedFileOffset / BLOCK_SIZE);
-                long blockOffset = (usedFileOffset % BLOCK_SIZE);
+                long blockNumber = (usedFileOffset / DECRYPTED_CHUNK_SIZE);
+                int blockOffset = (int) (usedFileOffset % DECRYPTED_CHUNK_SIZE);
 
-                readOffset = clusterOffset + (blockNumber * BLOCK_SIZE);
-                // (long)WiiUDisc.WIIU_DECRYPTED_AREA_OFFSET + volumeOffset + clusterOffset + (blockStructure.getBlockNumber() * 0x8000);
+                long readOffset = clusterOffset + (blockNumber * DECRYPTED_CHUNK_SIZE);
 
                 if (!useFixedIV) {
-                    ByteBuffer byteBuffer = ByteBuffer.allocate(0x10);
-                    byteBuffer.position(0x08);
-                    usedIV = byteBuffer.putLong(usedFileOffset >> 16).array();
+                    // The IV of a block is its number as big endian in the second half.
+                    for (int i = 0; i < 8; i++) {
+                        usedIV[0x0F - i] = (byte) (blockNumber >>> (i * 8));
+                    }
                 }
 
-                buffer = readDecryptedChunk(readOffset, key, usedIV);
-                maxCopySize = BLOCK_SIZE - blockOffset;
-                copySize = (usedSize > maxCopySize) ? maxCopySize : usedSize;
+                int copySize = (int) Math.min(usedSize, DECRYPTED_CHUNK_SIZE - blockOffset);
+                readDecryptedRange(readOffset, buffer, blockOffset, blockOffset + copySize, key, usedIV, cached);
 
                 try {
-                    outputStream.write(Arrays.copyOfRange(buffer, (int) blockOffset, (int) (blockOffset + copySize)));
+                    outputStream.write(buffer, blockOffset, copySize);
                 } catch (IOException e) {
                     if (e.getMessage().equals("Pipe closed")) {
                         break;
@@ -150,12 +275,76 @@ public abstract class WUDDiscReader {
                 usedFileOffset += copySize;
             } while (totalread < size);
         } finally {
+            BufferPool.getInstance().release(buffer);
             StreamUtils.closeAll(outputStream);
         }
 
         return totalread >= size;
     }
 
+    private boolean readDecryptedToOutputStreamParallel(OutputStream outputStream, long clusterOffset, long fileOffset, long size, byte[] key, byte[] IV,
+            boolean useFixedIV, ExecutionContext context) throws IOException {
+        byte[] fixedIV = (useFixedIV && IV != null) ? IV : new byte[0x10];
+
+        long firstBlock = fileOffset / DECRYPTED_CHUNK_SIZE;
+        int offsetInFirstBlock = (int) (fileOffset % DECRYPTED_CHUNK_SIZE);
+        long streamSize = ((offsetInFirstBlock + size + DECRYPTED_CHUNK_SIZE - 1) / DECRYPTED_CHUNK_SIZE) * DECRYPTED_CHUNK_SIZE;
+
+        long[] written = new long[1];
+        boolean[] pipeClosed = new boolean[1];
+        int taskSize = DECRYPTED_CHUNK_SIZE * PARALLEL_BLOCKS_PER_TASK;
+        int queueDepth = (int) Math.min(context.getCpuParallelism() * 2, (streamSize + taskSize - 1) / taskSize);
+        InputStream in = readEncryptedToStream(clusterOffset + firstBlock * DECRYPTED_CHUNK_SIZE, streamSize);
+        StreamPipeline pipeline = new StreamPipeline(context, queueDepth, taskSize);
+        try {
+            pipeline.run(in, streamSize, chunk -> {
+                if (chunk.getLength() == 0 || chunk.getLength() % DECRYPTED_CHUNK_SIZE != 0) {
+                    throw new EOFException("Unexpected end of the image at " + (clusterOffset + firstBlock * DECRYPTED_CHUNK_SIZE + chunk.getPosition()));
+                }
+                byte[] data = chunk.getData();
+                byte[] blockIV = useFixedIV ? fixedIV : new byte[0x10];
+                long blockNumber = firstBlock + chunk.getPosition() / DECRYPTED_CHUNK_SIZE;
+                NUSDecryption decryption = DecryptionContextCache.borrow(key, blockIV);
+                try {
+                    for (int offset = 0; offset < chunk.getLength(); offset += DECRYPTED_CHUNK_SIZE, blockNumber++) {
+                        if (!useFixedIV) {
+                            for (int i = 0; i < 8; i++) {
+                                blockIV[0x0F - i] = (byte) (blockNumber >>> (i * 8));
+                            }
+                        }
+                        decryption.decrypt(data, offset, DECRYPTED_CHUNK_SIZE, data, offset, blockIV, 0);
+                    }
+                } finally {
+                    DecryptionContextCache.release(decryption);
+                }
+            }, chunk -> {
+                long from = Math.max(0, offsetInFirstBlock - chunk.getPosition());
+                long to = Math.min(chunk.getLength(), offsetInFirstBlock + size - chunk.getPosition());
+                try {
+                    outputStream.write(chunk.getData(), (int) from, (int) (to - from));
+                } catch (IOException e) {
+                    if (e.getMessage().equals("Pipe closed")) {
+                        pipeClosed[0] = true;
+                        return false;
+                    }
+                    throw e;
+                }
+                written[0] += to - from;
+                // Keep going after the last chunk, the pipeline ends on its end marker and can release the chunks.
+                return true;
+            });
+        } catch (CheckSumWrongException e) {
+            // Nothing is verified here.
+            throw new IOException(e);
+        } finally {
+            StreamUtils.closeAll(outputStream);
+        }
+        if (!pipeClosed[0] && written[0] < size) {
+            throw new EOFException("Unexpected end of the image at " + (clusterOffset + fileOffset + written[0]));
+        }
+        return written[0] >= size;
+    }
+
     /**
      * Create a new RandomAccessFileStream
      * 
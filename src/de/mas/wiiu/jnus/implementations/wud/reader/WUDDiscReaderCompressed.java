@@ -16,16 +16,31 @@
  ****************************************************************************/
 package de.mas.wiiu.jnus.implementations.wud.reader;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import de.mas.wiiu.jnus.implementations.wud.WUDImage;
 import de.mas.wiiu.jnus.implementations.wud.WUDImageCompressedInfo;
+import de.mas.wiiu.jnus.utils.BufferPool;
+import de.mas.wiiu.jnus.utils.FileChannelCache;
+import de.mas.wiiu.jnus.utils.PositionalInputStream;
 import de.mas.wiiu.jnus.utils.StreamUtils;
 
+/**
+ * Reads .wux images through one shared FileChannel. Reads are positional, so multiple partitions and threads can read at the same time. Runs of logical
+ * sectors which are stored consecutively are read at once, a sector which is repeated directly after itself is copied instead of being read again.
+ * Deflated sectors (see {@link WUDImageCompressedInfo#FLAG_DEFLATE}) are found through the sector offset table, the stored data of consecutive deflated
+ * sectors is read into one pooled buffer and inflated from there.
+ */
 public class WUDDiscReaderCompressed extends WUDDiscReader {
+    private static final int STREAM_BUFFER_SIZE = 0x40000;
+
+    private final FileChannelCache<Integer> channel = new FileChannelCache<>();
 
     public WUDDiscReaderCompressed(WUDImage image) {
         super(image);
@@ -50,47 +65,181 @@ public class WUDDiscReaderCompressed extends WUDDiscReader {
         if (fileBytesLeft < usedSize) {
             usedSize = fileBytesLeft;
         }
-        // compressed read must be handled on a per-sector level
-
-        int bufferSize = 0x8000;
-        byte[] buffer = new byte[bufferSize];
 
-        RandomAccessFile input = getRandomAccessFileStream();
+        byte[] buffer = BufferPool.getInstance().borrow(STREAM_BUFFER_SIZE);
         try {
-            synchronized (input) {
-                while (usedSize > 0) {
-                    long sectorOffset = (usedOffset % info.getSectorSize());
-                    long remainingSectorBytes = info.getSectorSize() - sectorOffset;
-                    long sectorIndex = (usedOffset / info.getSectorSize());
-                    int bytesToRead = (int) ((remainingSectorBytes < usedSize) ? remainingSectorBytes : usedSize); // read only up to the end of the current
-                                                                                                                   // sector
-                    // look up real sector index
-                    long realSectorIndex = info.getSectorIndex((int) sectorIndex);
-                    long offset2 = info.getOffsetSectorArray() + realSectorIndex * info.getSectorSize() + sectorOffset;
-
-                    input.seek(offset2);
-                    int read = input.read(buffer);
-
-                    if (read < 0) {
+            while (usedSize > 0) {
+                int read = readEncryptedDirect(usedOffset, ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, usedSize)));
+                if (read <= 0) {
+                    break;
+                }
+                try {
+                    out.write(buffer, 0, read);
+                } catch (IOException e) {
+                    if (e.getMessage().equals("Pipe closed")) {
                         break;
+                    } else {
+                        throw e;
+                    }
+                }
+
+                usedSize -= read;
+                usedOffset += read;
+            }
+        } finally {
+            StreamUtils.closeAll(out);
+            BufferPool.getInstance().release(buffer);
+        }
+        return usedSize == 0;
+    }
+
+    @Override
+    public InputStream readEncryptedToStream(long offset, long size) throws IOException {
+        return new PositionalInputStream(this::readEncryptedDirect, offset, size);
+    }
+
+    @Override
+    protected int readEncryptedDirect(long offset, ByteBuffer dst) throws IOException {
+        WUDImageCompressedInfo info = getImage().getCompressedInfo();
+        int sectorSize = info.getSectorSize();
+        long end = Math.min(info.getUncompressedSize(), offset + dst.remaining());
+
+        int start = dst.position();
+        int limit = dst.limit();
+        long usedOffset = offset;
+        // Position in dst of the last fully read sector, used to copy repeated sectors.
+        long lastSector = -1;
+        int lastSectorPosition = -1;
+        Inflater inflater = null;
+        byte[] sectorBuffer = null;
+        StoredWindow stored = null;
+        try {
+            while (usedOffset < end) {
+                int sectorIndex = (int) (usedOffset / sectorSize);
+                int sectorOffset = (int) (usedOffset % sectorSize);
+                long realSectorIndex = info.getSectorIndex(sectorIndex);
+
+                if (realSectorIndex == lastSector && sectorOffset == 0 && end - usedOffset >= sectorSize) {
+                    ByteBuffer previous = dst.duplicate();
+                    previous.limit(lastSectorPosition + sectorSize);
+                    previous.position(lastSectorPosition);
+                    lastSectorPosition = dst.position();
+                    dst.put(previous);
+                    usedOffset += sectorSize;
+                    continue;
+                }
+
+                if (info.getStoredSectorLength(realSectorIndex) < sectorSize) {
+                    if (inflater == null) {
+                        inflater = new Inflater();
+                        sectorBuffer = BufferPool.getInstance().borrow(sectorSize);
+                        stored = new StoredWindow(BufferPool.getInstance().borrow(Math.max(sectorSize, STREAM_BUFFER_SIZE)));
                     }
-                    try {
-                        out.write(Arrays.copyOfRange(buffer, 0, bytesToRead));
-                    } catch (IOException e) {
-                        if (e.getMessage().equals("Pipe closed")) {
-                            break;
-                        } else {
-                            throw e;
-                        }
+                    inflateSector(info, realSectorIndex, inflater, sectorBuffer, stored, end - usedOffset);
+                    int toCopy = (int) Math.min(sectorSize - sectorOffset, end - usedOffset);
+                    int copyStart = dst.position();
+                    dst.put(sectorBuffer, sectorOffset, toCopy);
+                    if (sectorOffset == 0 && toCopy == sectorSize) {
+                        lastSector = realSectorIndex;
+                        lastSectorPosition = copyStart;
+                    } else {
+                        lastSector = -1;
                     }
+                    usedOffset += toCopy;
+                    continue;
+                }
+
+                // Extend the read as long as the following sectors are stored as they are, right behind this one.
+                long runEnd = (long) (sectorIndex + 1) * sectorSize;
+                long nextRealSectorIndex = realSectorIndex + 1;
+                while (runEnd < end && info.getSectorIndex((int) (runEnd / sectorSize)) == nextRealSectorIndex
+                        && info.getStoredSectorLength(nextRealSectorIndex) == sectorSize) {
+                    runEnd += sectorSize;
+                    nextRealSectorIndex++;
+                }
+                int toRead = (int) (Math.min(runEnd, end) - usedOffset);
 
-                    usedSize -= bytesToRead;
-                    usedOffset += bytesToRead;
+                int readStart = dst.position();
+                dst.limit(readStart + toRead);
+                long physicalOffset = info.getStoredSectorOffset(realSectorIndex) + sectorOffset;
+                int read = channel.read(0, () -> getImage().getFileHandle(), physicalOffset, dst);
+                dst.limit(limit);
+                if (read < toRead) {
+                    throw new EOFException("Unexpected end of the .wux at " + (physicalOffset + read));
                 }
+
+                // Only remember the last sector of the run if it has been read completely.
+                if (usedOffset + toRead == runEnd && runEnd - sectorSize >= usedOffset) {
+                    lastSector = nextRealSectorIndex - 1;
+                    lastSectorPosition = readStart + (int) (runEnd - sectorSize - usedOffset);
+                } else {
+                    lastSector = -1;
+                }
+                usedOffset += toRead;
             }
         } finally {
-            StreamUtils.closeAll(input, out);
+            dst.limit(limit);
+            if (inflater != null) {
+                inflater.end();
+                BufferPool.getInstance().release(sectorBuffer);
+                BufferPool.getInstance().release(stored.data);
+            }
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Inflates a stored sector into <code>sector</code>. If the sector isn't in the window yet, the window is refilled starting at the sector. It covers at
+     * most <code>remaining</code> bytes, the stored data of the following sectors is smaller than the data that is still going to be read.
+     */
+    private void inflateSector(WUDImageCompressedInfo info, long realSectorIndex, Inflater inflater, byte[] sector, StoredWindow stored, long remaining)
+            throws IOException {
+        int storedLength = info.getStoredSectorLength(realSectorIndex);
+        long physicalOffset = info.getStoredSectorOffset(realSectorIndex);
+        if (physicalOffset < stored.start || physicalOffset + storedLength > stored.start + stored.length) {
+            int toRead = (int) Math.min(stored.data.length, Math.max(storedLength, remaining));
+            stored.start = physicalOffset;
+            stored.length = channel.read(0, () -> getImage().getFileHandle(), physicalOffset, ByteBuffer.wrap(stored.data, 0, toRead));
+            if (stored.length < storedLength) {
+                throw new EOFException("Unexpected end of the .wux at " + (physicalOffset + stored.length));
+            }
+        }
+        inflater.reset();
+        inflater.setInput(stored.data, (int) (physicalOffset - stored.start), storedLength);
+        try {
+            int length = 0;
+            while (length < sector.length && !inflater.finished()) {
+                int inflated = inflater.inflate(sector, length, sector.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != info.getSectorSize()) {
+                throw new IOException("Sector " + realSectorIndex + " of the .wux is corrupted");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Sector " + realSectorIndex + " of the .wux is corrupted", e);
+        }
+    }
+
+    @Override
+    public boolean isPositionalReadSupported() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static class StoredWindow {
+        private final byte[] data;
+        private long start = -1;
+        private int length = 0;
+
+        StoredWindow(byte[] data) {
+            this.data = data;
         }
-        return usedSize == 0;
     }
 }
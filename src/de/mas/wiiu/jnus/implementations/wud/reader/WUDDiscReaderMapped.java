@@ -0,0 +1,158 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.implementations.wud.reader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import de.mas.wiiu.jnus.implementations.wud.WUDImage;
+import de.mas.wiiu.jnus.utils.BufferPool;
+import de.mas.wiiu.jnus.utils.PositionalInputStream;
+
+/**
+ * Reads an uncompressed image through memory mappings. The image is mapped lazily in windows of {@link #WINDOW_SIZE} bytes, reads work on duplicates of
+ * the mapped buffers so any number of threads can read concurrently without opening or seeking the file.
+ * 
+ * The mappings are released by the garbage collector, {@link #close()} only drops the references.
+ */
+public class WUDDiscReaderMapped extends WUDDiscReader {
+    public static final long WINDOW_SIZE = 1024L * 1024L * 1024L;
+
+    private final long fileSize;
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+    public WUDDiscReaderMapped(WUDImage image) {
+        super(image);
+        this.fileSize = image.getFileHandle().length();
+        this.windows = new AtomicReferenceArray<>((int) ((fileSize + WINDOW_SIZE - 1) / WINDOW_SIZE));
+    }
+
+    private MappedByteBuffer getWindow(int index) throws IOException {
+        MappedByteBuffer window = windows.get(index);
+        if (window != null) {
+            return window;
+        }
+        synchronized (windows) {
+            window = windows.get(index);
+            if (window == null) {
+                long start = index * WINDOW_SIZE;
+                try (FileChannel channel = FileChannel.open(getImage().getFileHandle().toPath(), StandardOpenOption.READ)) {
+                    // A mapping stays valid after the channel has been closed.
+                    window = channel.map(MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, fileSize - start));
+                }
+                windows.set(index, window);
+            }
+            return window;
+        }
+    }
+
+    /**
+     * Returns a read only view of the image without copying if the requested range lies within one window, otherwise the data is copied into a new
+     * buffer. The result may be shorter than <code>length</code> at the end of the image.
+     */
+    public ByteBuffer slice(long offset, int length) throws IOException {
+        long available = fileSize - offset;
+        if (available <= 0) {
+            return ByteBuffer.allocate(0);
+        }
+        int usedLength = (int) Math.min(length, available);
+        int index = (int) (offset / WINDOW_SIZE);
+        int inWindow = (int) (offset % WINDOW_SIZE);
+        if (inWindow + (long) usedLength <= WINDOW_SIZE) {
+            ByteBuffer view = getWindow(index).asReadOnlyBuffer();
+            view.position(inWindow);
+            view.limit(inWindow + usedLength);
+            return view.slice();
+        }
+        ByteBuffer result = ByteBuffer.allocate(usedLength);
+        readEncryptedDirect(offset, result);
+        result.flip();
+        return result;
+    }
+
+    @Override
+    protected int readEncryptedDirect(long offset, ByteBuffer dst) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining() && offset + total < fileSize) {
+            long curOffset = offset + total;
+            int inWindow = (int) (curOffset % WINDOW_SIZE);
+            ByteBuffer view = getWindow((int) (curOffset / WINDOW_SIZE)).duplicate();
+            view.position(inWindow);
+            if (view.remaining() > dst.remaining()) {
+                view.limit(inWindow + dst.remaining());
+            }
+            total += view.remaining();
+            dst.put(view);
+        }
+        return total;
+    }
+
+    @Override
+    public boolean isPositionalReadSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean readEncryptedToStream(OutputStream outputStream, long offset, long size) throws IOException {
+        int bufferSize = 0x8000;
+        byte[] buffer = BufferPool.getInstance().borrow(bufferSize);
+        long totalread = 0;
+        try {
+            while (totalread < size) {
+                int read = readEncryptedDirect(offset + totalread, ByteBuffer.wrap(buffer, 0, (int) Math.min(bufferSize, size - totalread)));
+                if (read <= 0) {
+                    break;
+                }
+                try {
+                    outputStream.write(buffer, 0, read);
+                } catch (IOException e) {
+                    if (e.getMessage().equals("Pipe closed")) {
+                        break;
+                    }
+                    throw e;
+                }
+                totalread += read;
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+            outputStream.close();
+        }
+        return totalread >= size;
+    }
+
+    /**
+     * Like the stream of {@link WUDDiscReaderUncompressed} the returned stream is not limited to <code>size</code>, it ends at the end of the image.
+     */
+    @Override
+    public InputStream readEncryptedToStream(long offset, long size) throws IOException {
+        return new PositionalInputStream(this::readEncryptedDirect, offset, Math.max(0, fileSize - offset));
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < windows.length(); i++) {
+            windows.set(i, null);
+        }
+    }
+}
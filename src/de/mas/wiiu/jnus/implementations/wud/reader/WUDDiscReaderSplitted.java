@@ -19,100 +19,123 @@ package de.mas.wiiu.jnus.implementations.wud.reader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import de.mas.wiiu.jnus.implementations.wud.WUDImage;
+import de.mas.wiiu.jnus.utils.BufferPool;
+import de.mas.wiiu.jnus.utils.ConcatenatedFileChannel;
+import de.mas.wiiu.jnus.utils.PositionalInputStream;
 import lombok.extern.java.Log;
 
+/**
+ * Reads splitted images as one concatenated channel, the parts are kept open and read positionally. Every part except the last one has to be
+ * {@link #WUD_SPLITTED_FILE_SIZE} bytes long. Reading from a part that doesn't exist fails with a {@link FileNotFoundException}.
+ */
 @Log
 public class WUDDiscReaderSplitted extends WUDDiscReader {
     public static long WUD_SPLITTED_FILE_SIZE = 0x100000L * 0x800L;
     public static long NUMBER_OF_FILES = 12;
     public static String WUD_SPLITTED_DEFAULT_FILEPATTERN = "game_part%d.wud";
 
+    private static final int STREAM_BUFFER_SIZE = 0x40000;
+
+    private ConcatenatedFileChannel channel;
+    /** The first part that doesn't exist if the existing parts end before the image, otherwise <code>null</code>. */
+    private File missingPart;
+
     public WUDDiscReaderSplitted(WUDImage image) {
         super(image);
     }
 
-    @Override
-    public boolean readEncryptedToStream(OutputStream outputStream, long offset, long size) throws IOException {
-        RandomAccessFile input = getFileByOffset(offset);
-
-        int bufferSize = 0x8000;
-        byte[] buffer = new byte[bufferSize];
-        long totalread = 0;
-        long curOffset = offset;
-
-        int part = getFilePartByOffset(offset);
-        long offsetInFile = getOffsetInFilePart(part, curOffset);
-
-        do {
-            offsetInFile = getOffsetInFilePart(part, curOffset);
-            int curReadSize = bufferSize;
-            if ((offsetInFile + bufferSize) >= WUD_SPLITTED_FILE_SIZE) { // Will we read above the part?
-                long toRead = WUD_SPLITTED_FILE_SIZE - offsetInFile;
-                if (toRead == 0) { // just load the new file
-                    input.close();
-                    input = getFileByOffset(curOffset);
-                    part++;
-                    offsetInFile = getOffsetInFilePart(part, curOffset);
-                } else {
-                    curReadSize = (int) toRead; // And first only read until the part ends
+    private synchronized ConcatenatedFileChannel getChannel() throws IOException {
+        if (channel == null) {
+            String pathToFiles = getImage().getFileHandle().getParentFile().getAbsolutePath();
+            List<File> parts = new ArrayList<>();
+            File missing = null;
+            for (int i = 1; i <= NUMBER_OF_FILES; i++) {
+                File part = new File(pathToFiles + File.separator + String.format(WUD_SPLITTED_DEFAULT_FILEPATTERN, i));
+                if (!part.exists()) {
+                    missing = part;
+                    break;
                 }
+                parts.add(part);
             }
-
-            int read = input.read(buffer, 0, curReadSize);
-            if (read < 0) {
-                break;
-            }
-            if (totalread + read > size) {
-                read = (int) (size - totalread);
+            if (parts.isEmpty()) {
+                log.info("File does not exist");
+                throw new FileNotFoundException(getImage().getFileHandle().getAbsolutePath() + " does not exist");
             }
-            try {
-                outputStream.write(Arrays.copyOfRange(buffer, 0, read));
-            } catch (IOException e) {
-                if (e.getMessage().equals("Pipe closed")) {
-                    break;
-                } else {
-                    input.close();
-                    throw e;
+            for (int i = 0; i < parts.size(); i++) {
+                File part = parts.get(i);
+                boolean isLast = i == parts.size() - 1;
+                if (isLast ? part.length() > WUD_SPLITTED_FILE_SIZE : part.length() != WUD_SPLITTED_FILE_SIZE) {
+                    throw new IOException(part.getAbsolutePath() + " has an unexpected size of " + part.length() + " bytes");
                 }
             }
-            totalread += read;
-            curOffset += read;
-        } while (totalread < size);
-
-        input.close();
-        outputStream.close();
-        return totalread >= size;
+            channel = new ConcatenatedFileChannel(parts);
+            missingPart = channel.size() < WUDImage.WUD_FILESIZE ? missing : null;
+        }
+        return channel;
     }
 
-    private int getFilePartByOffset(long offset) {
-        return (int) (offset / WUD_SPLITTED_FILE_SIZE) + 1;
+    @Override
+    protected int readEncryptedDirect(long offset, ByteBuffer dst) throws IOException {
+        ConcatenatedFileChannel input = getChannel();
+        int read = input.read(offset, dst);
+        if (dst.hasRemaining() && missingPart != null && offset + read < WUDImage.WUD_FILESIZE) {
+            log.info("File does not exist");
+            throw new FileNotFoundException(missingPart.getAbsolutePath() + " does not exist");
+        }
+        return read;
     }
 
-    private long getOffsetInFilePart(int part, long offset) {
-        return offset - ((long) (part - 1) * WUD_SPLITTED_FILE_SIZE);
+    @Override
+    public boolean isPositionalReadSupported() {
+        return true;
     }
 
-    private RandomAccessFile getFileByOffset(long offset) throws IOException {
-        File filehandlePart1 = getImage().getFileHandle();
-        String pathToFiles = filehandlePart1.getParentFile().getAbsolutePath();
-
-        int filePart = getFilePartByOffset(offset);
-
-        String filePartPath = pathToFiles + File.separator + String.format(WUD_SPLITTED_DEFAULT_FILEPATTERN, filePart);
+    @Override
+    public boolean readEncryptedToStream(OutputStream outputStream, long offset, long size) throws IOException {
+        byte[] buffer = BufferPool.getInstance().borrow(STREAM_BUFFER_SIZE);
+        long totalread = 0;
+        try {
+            while (totalread < size) {
+                int read = readEncryptedDirect(offset + totalread, ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, size - totalread)));
+                if (read <= 0) {
+                    break;
+                }
+                try {
+                    outputStream.write(buffer, 0, read);
+                } catch (IOException e) {
+                    if (e.getMessage().equals("Pipe closed")) {
+                        break;
+                    } else {
+                        throw e;
+                    }
+                }
+                totalread += read;
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+            outputStream.close();
+        }
+        return totalread >= size;
+    }
 
-        File part = new File(filePartPath);
+    @Override
+    public InputStream readEncryptedToStream(long offset, long size) throws IOException {
+        getChannel();
+        return new PositionalInputStream(this::readEncryptedDirect, offset, size);
+    }
 
-        if (!part.exists()) {
-            log.info("File does not exist");
-            throw new FileNotFoundException(part.getAbsolutePath() + " does not exist");
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
         }
-        RandomAccessFile result = new RandomAccessFile(part, "r");
-        result.seek(getOffsetInFilePart(filePart, offset));
-        return result;
     }
 }
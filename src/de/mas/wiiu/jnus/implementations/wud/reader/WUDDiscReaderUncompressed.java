@@ -20,48 +20,68 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import de.mas.wiiu.jnus.implementations.wud.WUDImage;
+import de.mas.wiiu.jnus.utils.BufferPool;
+import de.mas.wiiu.jnus.utils.FileChannelCache;
 import de.mas.wiiu.jnus.utils.StreamUtils;
 
 public class WUDDiscReaderUncompressed extends WUDDiscReader {
+    private final FileChannelCache<Integer> channel = new FileChannelCache<>();
+
     public WUDDiscReaderUncompressed(WUDImage image) {
         super(image);
     }
 
+    @Override
+    protected int readEncryptedDirect(long offset, ByteBuffer dst) throws IOException {
+        return channel.read(0, () -> getImage().getFileHandle(), offset, dst);
+    }
+
+    @Override
+    public boolean isPositionalReadSupported() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
     @Override
     public boolean readEncryptedToStream(OutputStream outputStream, long offset, long size) throws IOException {
 
         FileInputStream input = new FileInputStream(getImage().getFileHandle());
 
-        StreamUtils.skipExactly(input, offset);
-
         int bufferSize = 0x8000;
-        byte[] buffer = new byte[bufferSize];
+        byte[] buffer = BufferPool.getInstance().borrow(bufferSize);
         long totalread = 0;
-        do {
-            int read = input.read(buffer);
-            if (read < 0) {
-                break;
-            }
-            if (totalread + read > size) {
-                read = (int) (size - totalread);
-            }
-            try {
-                outputStream.write(Arrays.copyOfRange(buffer, 0, read));
-            } catch (IOException e) {
-                if (e.getMessage().equals("Pipe closed")) {
+        try {
+            StreamUtils.skipExactly(input, offset);
+            do {
+                int read = input.read(buffer);
+                if (read < 0) {
                     break;
-                } else {
-                    input.close();
-                    throw e;
                 }
-            }
-            totalread += read;
-        } while (totalread < size);
-        input.close();
-        outputStream.close();
+                if (totalread + read > size) {
+                    read = (int) (size - totalread);
+                }
+                try {
+                    outputStream.write(buffer, 0, read);
+                } catch (IOException e) {
+                    if (e.getMessage().equals("Pipe closed")) {
+                        break;
+                    } else {
+                        throw e;
+                    }
+                }
+                totalread += read;
+            } while (totalread < size);
+        } finally {
+            BufferPool.getInstance().release(buffer);
+            StreamUtils.closeAll(input, outputStream);
+        }
         return totalread >= size;
     }
 
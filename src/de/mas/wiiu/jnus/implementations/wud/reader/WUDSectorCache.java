@@ -0,0 +1,142 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.implementations.wud.reader;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import lombok.Getter;
+
+/**
+ * Bounded LRU cache for raw (encrypted) 0x8000 sectors of one image. It's attached to the {@link WUDDiscReader} of an image, so all partitions and
+ * providers reading through that reader share it. The cache can be kept and attached to a new reader when the same image is loaded again, but it can't be
+ * shared between different images.
+ */
+public class WUDSectorCache {
+    public static final int SECTOR_SIZE = 0x8000;
+    /**
+     * Bigger reads bypass the cache even if the caller opted in, they would only evict the metadata.
+     */
+    public static final int MAX_CACHED_READ_SIZE = 4 * SECTOR_SIZE;
+
+    @Getter private final long maxSize;
+    private String imageID = null;
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private final LinkedHashMap<Long, byte[]> sectors = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxSize
+     *            maximum number of cached bytes
+     */
+    public WUDSectorCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Binds the cache to an image, the first image it's bound to is the only one it can be used for.
+     * 
+     * @throws IllegalArgumentException
+     *             if the cache is already used for another image
+     */
+    synchronized void bind(String imageID) {
+        if (this.imageID == null) {
+            this.imageID = imageID;
+        } else if (!this.imageID.equals(imageID)) {
+            throw new IllegalArgumentException("The sector cache is already used for " + this.imageID);
+        }
+    }
+
+    /**
+     * Copies the cached sector into <code>dst</code>, starting at <code>offsetInSector</code>.
+     * 
+     * @return number of bytes copied, 0 if the sector ends before the offset, or -1 if the sector is not cached
+     */
+    public synchronized int read(long sector, int offsetInSector, ByteBuffer dst) {
+        byte[] data = sectors.get(sector);
+        if (data == null) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        int len = Math.max(0, Math.min(data.length - offsetInSector, dst.remaining()));
+        dst.put(data, offsetInSector, len);
+        return len;
+    }
+
+    /**
+     * Adds a copy of the sector to the cache. Only the last sector of an image may be shorter than {@link #SECTOR_SIZE}. The least recently used sectors
+     * will be evicted if the cache is full.
+     */
+    public synchronized void put(long sector, byte[] buffer, int offset, int length) {
+        if (length > maxSize || length > SECTOR_SIZE) {
+            return;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+
+        byte[] old = sectors.put(sector, data);
+        if (old != null) {
+            size -= old.length;
+        }
+        size += length;
+
+        Iterator<Entry<Long, byte[]>> it = sectors.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getValue().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getSectorCount() {
+        return sectors.size();
+    }
+
+    public synchronized void clear() {
+        sectors.clear();
+        size = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WUDSectorCache [size=" + size + ", maxSize=" + maxSize + ", sectors=" + sectors.size() + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+}
@@ -20,10 +20,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedOutputStream;
+import java.nio.channels.SeekableByteChannel;
 
 import de.mas.wiiu.jnus.entities.fst.FSTEntry;
-import de.mas.wiiu.jnus.utils.PipedInputStreamWithException;
+import de.mas.wiiu.jnus.utils.BlockReadChannel;
+import de.mas.wiiu.jnus.utils.RingBufferInputStream;
 
 public interface FSTDataProvider {
     public String getName();
@@ -47,19 +48,7 @@ public interface FSTDataProvider {
     }
 
     default public InputStream readFileAsStream(FSTEntry entry, long offset, long size) throws IOException {
-        PipedOutputStream out = new PipedOutputStream();
-        PipedInputStreamWithException in = new PipedInputStreamWithException(out, 0x10000);
-
-        new Thread(() -> {
-            try {
-                readFileToStream(out, entry, offset, size);
-                in.throwException(null);
-            } catch (Exception e) {
-                in.throwException(e);
-            }
-        }).start();
-
-        return in;
+        return RingBufferInputStream.start(RingBufferInputStream.DEFAULT_BUFFER_SIZE, out -> readFileToStream(out, entry, offset, size));
     }
 
     default public boolean readFileToStream(OutputStream out, FSTEntry entry) throws IOException {
@@ -72,4 +61,19 @@ public interface FSTDataProvider {
 
     public boolean readFileToStream(OutputStream out, FSTEntry entry, long offset, long size) throws IOException;
 
+    /**
+     * Opens a read-only channel on the given file. The channel supports random access with any offset and keeps its position between reads.
+     * Implementations should only read the data that is needed for the requested range.
+     */
+    default public SeekableByteChannel openFileChannel(FSTEntry entry) throws IOException {
+        int blockSize = 0x8000;
+        return new BlockReadChannel((block, buffer) -> {
+            long offset = block * blockSize;
+            int length = (int) Math.min(blockSize, entry.getFileSize() - offset);
+            byte[] data = readFile(entry, offset, length);
+            System.arraycopy(data, 0, buffer, 0, data.length);
+            return data.length;
+        }, 0, entry.getFileSize(), blockSize);
+    }
+
 }
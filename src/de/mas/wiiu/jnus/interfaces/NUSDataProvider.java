@@ -19,15 +19,51 @@ package de.mas.wiiu.jnus.interfaces;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Optional;
 
 import de.mas.wiiu.jnus.entities.content.Content;
 import de.mas.wiiu.jnus.entities.fst.FST;
+import de.mas.wiiu.jnus.utils.PositionalInputStream;
 import de.mas.wiiu.jnus.utils.StreamUtils;
 
 public interface NUSDataProvider {
     default public byte[] readContent(Content content, long offset, int size) throws IOException {
-        return StreamUtils.getBytesFromStream(readContentAsStream(content, offset, size), size);
+        byte[] result = new byte[size];
+        read(content, offset, ByteBuffer.wrap(result));
+        return result;
+    }
+
+    /**
+     * Reads the encrypted content from the given position until <code>dst</code> is full or the end of the content has been reached. The default
+     * implementation opens a stream for each call, providers that can read positionally override this and {@link #isPositionalReadSupported()}.
+     * 
+     * @return number of bytes read
+     */
+    default public int read(Content content, long position, ByteBuffer dst) throws IOException {
+        InputStream in = readContentAsStream(content, position, dst.remaining());
+        try {
+            return StreamUtils.readFully(in, dst);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if {@link #read(Content, long, ByteBuffer)} reads positionally instead of opening a stream
+     */
+    default public boolean isPositionalReadSupported() {
+        return false;
+    }
+
+    /**
+     * Like {@link #readContentAsStream(Content, long, long)}, but uses positional reads if they are supported.
+     */
+    default public InputStream openContentStream(Content content, long offset, long size) throws IOException {
+        if (isPositionalReadSupported()) {
+            return new PositionalInputStream((position, dst) -> read(content, position, dst), offset, size);
+        }
+        return readContentAsStream(content, offset, size);
     }
 
     default public InputStream readContentAsStream(Content content) throws IOException {
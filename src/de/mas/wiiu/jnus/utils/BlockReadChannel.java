@@ -0,0 +1,156 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import lombok.Getter;
+
+/**
+ * Read-only SeekableByteChannel on top of data which can only be read in (aligned) blocks, e.g. encrypted contents. The data of the channel starts at
+ * <code>baseOffset</code> of the underlying data, the blocks are aligned to the underlying data. Only the blocks that are touched by a read are requested,
+ * the current block is kept until a read leaves it.
+ */
+public class BlockReadChannel implements SeekableByteChannel {
+    private final BlockReader reader;
+    private final Closeable resource;
+    private final long baseOffset;
+    private final long size;
+    @Getter private final int blockSize;
+
+    private byte[] block;
+    private long blockIndex = -1;
+    private int blockLength = 0;
+
+    private long position = 0;
+    private boolean open = true;
+
+    public BlockReadChannel(BlockReader reader, long baseOffset, long size, int blockSize) {
+        this(reader, baseOffset, size, blockSize, null);
+    }
+
+    /**
+     * @param resource closed together with the channel, e.g. state of the reader
+     */
+    public BlockReadChannel(BlockReader reader, long baseOffset, long size, int blockSize, Closeable resource) {
+        this.reader = reader;
+        this.resource = resource;
+        this.baseOffset = baseOffset;
+        this.size = size;
+        this.blockSize = blockSize;
+        this.block = BufferPool.getInstance().borrow(blockSize);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long offset = baseOffset + position;
+            long curBlock = offset / blockSize;
+            if (curBlock != blockIndex) {
+                // Invalidate first, the buffer is undefined if the reader fails.
+                blockIndex = -1;
+                blockLength = reader.readBlock(curBlock, block);
+                blockIndex = curBlock;
+            }
+            int inBlock = (int) (offset - curBlock * blockSize);
+            if (inBlock >= blockLength) {
+                throw new IOException("Block " + curBlock + " is too short. Got " + blockLength + " bytes, needed " + (inBlock + 1));
+            }
+            int len = (int) Math.min(Math.min(blockLength - inBlock, dst.remaining()), size - position);
+            dst.put(block, inBlock, len);
+            position += len;
+            total += len;
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        BufferPool.getInstance().release(block);
+        block = null;
+        if (resource != null) {
+            resource.close();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @FunctionalInterface
+    public interface BlockReader {
+        /**
+         * Reads the given block of the underlying data into the buffer.
+         * 
+         * @return number of valid bytes in the buffer, only the last block may be shorter than the block size
+         */
+        int readBlock(long block, byte[] buffer) throws IOException;
+    }
+}
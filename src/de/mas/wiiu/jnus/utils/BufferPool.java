@@ -0,0 +1,188 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+/**
+ * Shared pool for the block sized I/O buffers (heap arrays and direct ByteBuffers). Buffers are pooled per size class; a size class is an exact size which
+ * is a multiple of {@link #SIZE_CLASS_GRANULARITY}, this way the borrowed buffers have exactly the requested length. Other sizes are allocated and dropped
+ * as usual. The sum of the idle pooled buffers is limited by <code>maxPooledBytes</code>.
+ * 
+ * The content of borrowed buffers is undefined. A buffer must not be used after it has been released.
+ */
+public final class BufferPool {
+    public static final int SIZE_CLASS_GRANULARITY = 0x1000;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024;
+
+    private static final BufferPool INSTANCE = new BufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    @Getter private volatile long maxPooledBytes;
+
+    private final Map<Integer, Deque<byte[]>> heapBuffers = new ConcurrentHashMap<>();
+    private final Map<Integer, Deque<ByteBuffer>> directBuffers = new ConcurrentHashMap<>();
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the maximum number of bytes kept in idle buffers. Already pooled buffers are dropped if they exceed the new limit.
+     */
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        if (pooledBytes.get() > maxPooledBytes) {
+            clear();
+        }
+    }
+
+    public byte[] borrow(int size) {
+        borrowed.incrementAndGet();
+        if (isPoolable(size)) {
+            Deque<byte[]> pool = heapBuffers.get(size);
+            byte[] result = pool == null ? null : pool.pollFirst();
+            if (result != null) {
+                pooledBytes.addAndGet(-size);
+                reused.incrementAndGet();
+                return result;
+            }
+        }
+        return new byte[size];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (offer(buffer.length)) {
+            heapBuffers.computeIfAbsent(buffer.length, k -> new ConcurrentLinkedDeque<>()).offerFirst(buffer);
+        }
+    }
+
+    /**
+     * Returns a direct ByteBuffer with the position 0 and the limit <code>size</code>.
+     */
+    public ByteBuffer borrowDirect(int size) {
+        borrowed.incrementAndGet();
+        if (isPoolable(size)) {
+            Deque<ByteBuffer> pool = directBuffers.get(size);
+            ByteBuffer result = pool == null ? null : pool.pollFirst();
+            if (result != null) {
+                pooledBytes.addAndGet(-size);
+                reused.incrementAndGet();
+                result.clear();
+                return result;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        if (offer(buffer.capacity())) {
+            directBuffers.computeIfAbsent(buffer.capacity(), k -> new ConcurrentLinkedDeque<>()).offerFirst(buffer);
+        }
+    }
+
+    private boolean offer(int size) {
+        released.incrementAndGet();
+        if (!isPoolable(size)) {
+            discarded.incrementAndGet();
+            return false;
+        }
+        if (pooledBytes.addAndGet(size) > maxPooledBytes) {
+            pooledBytes.addAndGet(-size);
+            discarded.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isPoolable(int size) {
+        return size > 0 && size % SIZE_CLASS_GRANULARITY == 0;
+    }
+
+    /**
+     * Drops all idle buffers.
+     */
+    public void clear() {
+        for (Deque<byte[]> pool : heapBuffers.values()) {
+            byte[] buffer;
+            while ((buffer = pool.pollFirst()) != null) {
+                pooledBytes.addAndGet(-buffer.length);
+            }
+        }
+        for (Deque<ByteBuffer> pool : directBuffers.values()) {
+            ByteBuffer buffer;
+            while ((buffer = pool.pollFirst()) != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+    }
+
+    /** Number of bytes currently held by idle buffers. */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public long getBorrowed() {
+        return borrowed.get();
+    }
+
+    /** Number of borrowed buffers that came from the pool instead of being allocated. */
+    public long getReused() {
+        return reused.get();
+    }
+
+    public long getAllocated() {
+        return borrowed.get() - reused.get();
+    }
+
+    public long getReleased() {
+        return released.get();
+    }
+
+    /** Number of released buffers that have not been pooled because of their size or the memory limit. */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool [pooledBytes=" + getPooledBytes() + ", maxPooledBytes=" + maxPooledBytes + ", borrowed=" + getBorrowed() + ", reused="
+                + getReused() + ", allocated=" + getAllocated() + ", released=" + getReleased() + ", discarded=" + getDiscarded() + "]";
+    }
+}
@@ -27,6 +27,10 @@ public class ByteArrayBuffer {
         buffer = new byte[(int) length];
     }
 
+    public ByteArrayBuffer(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
     public int getSpaceLeft() {
         return buffer.length - getLengthOfDataInBuffer();
     }
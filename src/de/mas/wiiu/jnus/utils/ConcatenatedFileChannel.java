@@ -0,0 +1,96 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read only view of multiple files as if they were concatenated. The files are kept open and read positionally, reads may cross file boundaries and
+ * any number of threads can read at the same time.
+ */
+public final class ConcatenatedFileChannel implements Closeable, PositionalInputStream.PositionalReader {
+    private final File[] parts;
+    /** Start offset of each part, followed by the total size. */
+    private final long[] offsets;
+    private final FileChannelCache<Integer> channels = new FileChannelCache<>();
+
+    public ConcatenatedFileChannel(List<File> parts) {
+        this.parts = parts.toArray(new File[0]);
+        this.offsets = new long[this.parts.length + 1];
+        for (int i = 0; i < this.parts.length; i++) {
+            offsets[i + 1] = offsets[i] + this.parts[i].length();
+        }
+    }
+
+    public long size() {
+        return offsets[parts.length];
+    }
+
+    /**
+     * Reads from the given position until <code>dst</code> is full or the end of the last part has been reached.
+     * 
+     * @return number of bytes read
+     */
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int limit = dst.limit();
+        long curPosition = position;
+        try {
+            while (dst.hasRemaining() && curPosition < size()) {
+                int part = getPart(curPosition);
+                long inPart = curPosition - offsets[part];
+                long partRemaining = offsets[part + 1] - curPosition;
+                if (dst.remaining() > partRemaining) {
+                    dst.limit(dst.position() + (int) partRemaining);
+                }
+                int read = channels.read(part, () -> parts[part], inPart, dst);
+                dst.limit(limit);
+                if (read <= 0) {
+                    // The part is shorter than it was on opening.
+                    break;
+                }
+                curPosition += read;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        return dst.position() - start;
+    }
+
+    private int getPart(long position) {
+        int index = Arrays.binarySearch(offsets, position);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // Skip empty parts.
+        while (index < parts.length - 1 && offsets[index + 1] == position) {
+            index++;
+        }
+        return index;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channels.close();
+    }
+}
@@ -117,6 +117,22 @@ public class DataProviderUtils {
      * @throws IOException
      */
     public static void saveEncryptedContent(@NonNull NUSDataProvider dataProvider, @NonNull Content content, @NonNull String outputFolder) throws IOException {
+        saveEncryptedContent(dataProvider, content, outputFolder, 0);
+    }
+
+    /**
+     * Saves the given content encrypted in the given directory. While writing, up to <code>queueDepth</code> chunks are read ahead on a separate thread.
+     * 
+     * @param content
+     *            Content that should be saved
+     * @param outputFolder
+     *            Target directory where the files will be stored in.
+     * @param queueDepth
+     *            number of chunks to read ahead, 0 disables the read ahead.
+     * @throws IOException
+     */
+    public static void saveEncryptedContent(@NonNull NUSDataProvider dataProvider, @NonNull Content content, @NonNull String outputFolder, int queueDepth)
+            throws IOException {
         int maxTries = 3;
         int i = 0;
         while (i < maxTries) {
@@ -139,7 +155,7 @@ public class DataProviderUtils {
                 return;
             }
             log.fine("loading " + content.getFilename());
-            FileUtils.saveInputStreamToFile(output, inputStream, content.getEncryptedFileSizeAligned());
+            FileUtils.saveInputStreamToFile(output, inputStream, content.getEncryptedFileSizeAligned(), queueDepth);
 
             File outputNow = new File(outputFolder + File.separator + content.getFilename());
             if (outputNow.exists()) {
@@ -0,0 +1,93 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps read only FileChannels open for positional reads. The channels are shared between threads; a channel which has been closed, e.g. because a
+ * reading thread got interrupted, is opened again on the next access.
+ *
+ * @param <K>
+ *            key to identify the file, resolving the file is only needed when the channel is opened
+ */
+public final class FileChannelCache<K> implements Closeable {
+    private final Map<K, FileChannel> channels = new HashMap<>();
+
+    public synchronized FileChannel getChannel(K key, FileResolver resolver) throws IOException {
+        FileChannel channel = channels.get(key);
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(resolver.resolve().toPath(), StandardOpenOption.READ);
+            channels.put(key, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Reads from the given position until <code>dst</code> is full or the end of the file has been reached.
+     *
+     * @return number of bytes read
+     */
+    public int read(K key, FileResolver resolver, long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        boolean retried = false;
+        while (true) {
+            try {
+                FileUtils.readFully(getChannel(key, resolver), position + (dst.position() - start), dst);
+                return dst.position() - start;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // Closed by an interrupted thread that shared the channel.
+                if (retried) {
+                    throw e;
+                }
+                retried = true;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException exception = null;
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        channels.clear();
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    @FunctionalInterface
+    public interface FileResolver {
+        File resolve() throws IOException;
+    }
+}
@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import de.mas.wiiu.jnus.interfaces.CheckedFunction;
 import lombok.NonNull;
@@ -61,10 +63,37 @@ public final class FileUtils {
         return true;
     }
 
+    /**
+     * Reads from the given position until <code>dst</code> is full or the end of the file has been reached. Doesn't change the position of the channel.
+     * 
+     * @return number of bytes read
+     */
+    public static int readFully(FileChannel channel, long position, ByteBuffer dst) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
     public static void saveInputStreamToFile(@NonNull File outputFile, InputStream inputStream, long filesize) throws IOException {
         FileAsOutputStreamWrapper(outputFile, filesize, outputStream -> StreamUtils.saveInputStreamToOutputStream(inputStream, outputStream, filesize));
     }
 
+    /**
+     * Saves the InputStream to the given file, reading ahead up to <code>queueDepth</code> chunks while writing.
+     * 
+     * @see StreamUtils#saveInputStreamToOutputStream(InputStream, OutputStream, long, int)
+     */
+    public static void saveInputStreamToFile(@NonNull File outputFile, InputStream inputStream, long filesize, int queueDepth) throws IOException {
+        FileAsOutputStreamWrapper(outputFile, filesize,
+                outputStream -> StreamUtils.saveInputStreamToOutputStream(inputStream, outputStream, filesize, queueDepth));
+    }
+
     /**
      * Allows to write into a target file as OutputStream with some extras. The provided OutputStream already has the needed memory allocated. This results in a
      * non-fragmented file.
@@ -0,0 +1,149 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import lombok.Getter;
+
+/**
+ * Set of fixed length hashes (e.g. SHA-1 of sectors) which assigns each new hash the next index, starting at 0. The table uses open addressing over
+ * 64-bit fingerprints (the first 8 bytes of the hash) and confirms matches by comparing the full hash, so no objects are created per entry.
+ */
+public class FingerprintTable {
+    private static final int MIN_CAPACITY = 1024;
+
+    @Getter private final int hashLength;
+    @Getter private int size = 0;
+
+    private long[] fingerprints;
+    /** Index + 1 of the entry in the slot, 0 marks an empty slot. */
+    private int[] slots;
+    /** The full hashes in order of their index. */
+    private byte[] hashes;
+
+    /**
+     * @param hashLength
+     *            length of the hashes, at least 8 bytes
+     * @param expectedSize
+     *            expected number of entries, the table grows if needed
+     */
+    public FingerprintTable(int hashLength, int expectedSize) {
+        if (hashLength < 8) {
+            throw new IllegalArgumentException("hashLength must be at least 8");
+        }
+        this.hashLength = hashLength;
+        int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expectedSize) * 2 - 1) << 1;
+        this.fingerprints = new long[capacity];
+        this.slots = new int[capacity];
+        this.hashes = new byte[Math.max(MIN_CAPACITY, expectedSize) * hashLength];
+    }
+
+    /**
+     * Looks up the hash at <code>hash[offset]</code> and adds it if it's not present yet.
+     * 
+     * @return the index of the existing entry, or -1 if the hash has been added with the index <code>size() - 1</code>
+     */
+    public int putIfAbsent(byte[] hash, int offset) {
+        long fingerprint = fingerprint(hash, offset);
+        int mask = slots.length - 1;
+        int slot = mix(fingerprint) & mask;
+        while (slots[slot] != 0) {
+            int index = slots[slot] - 1;
+            if (fingerprints[slot] == fingerprint && equalsHash(index, hash, offset)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size * hashLength == hashes.length) {
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        }
+        System.arraycopy(hash, offset, hashes, size * hashLength, hashLength);
+        fingerprints[slot] = fingerprint;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) {
+            grow();
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the hash at <code>hash[offset]</code> or -1 if it's not present.
+     */
+    public int get(byte[] hash, int offset) {
+        long fingerprint = fingerprint(hash, offset);
+        int mask = slots.length - 1;
+        for (int slot = mix(fingerprint) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int index = slots[slot] - 1;
+            if (fingerprints[slot] == fingerprint && equalsHash(index, hash, offset)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the full hashes in order of their index, adding them to an empty table in the same order restores the indices.
+     */
+    public void writeHashes(OutputStream out) throws IOException {
+        out.write(hashes, 0, size * hashLength);
+    }
+
+    private boolean equalsHash(int index, byte[] hash, int offset) {
+        int start = index * hashLength;
+        for (int i = 0; i < hashLength; i++) {
+            if (hashes[start + i] != hash[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        long[] oldFingerprints = fingerprints;
+        int[] oldSlots = slots;
+        fingerprints = new long[oldSlots.length * 2];
+        slots = new int[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != 0) {
+                int slot = mix(oldFingerprints[i]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                fingerprints[slot] = oldFingerprints[i];
+                slots[slot] = oldSlots[i];
+            }
+        }
+    }
+
+    private static long fingerprint(byte[] hash, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (hash[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    private static int mix(long fingerprint) {
+        long h = fingerprint * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,173 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import lombok.extern.java.Log;
+
+/**
+ * Verifies the H0-H3 hash tree of hashed contents. Digest and result buffer are reused and all hashes are compared in place, so verifying a block doesn't
+ * allocate any memory. An instance must not be used by multiple threads at the same time, use {@link #borrow()} to get one from the shared pool and
+ * {@link #release(HashTreeVerifier)} to return it.
+ */
+@Log
+public final class HashTreeVerifier {
+    public static final int BLOCK_SIZE = 0x10000;
+    public static final int HASH_SIZE = 0x400;
+    public static final int DATA_SIZE = BLOCK_SIZE - HASH_SIZE;
+
+    private static final int SHA1_SIZE = 20;
+    private static final int HASH_TABLE_SIZE = 16 * SHA1_SIZE;
+
+    public static final int MAX_POOLED_INSTANCES = 16;
+
+    private static final Deque<HashTreeVerifier> POOL = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private final MessageDigest sha1;
+    private final byte[] digest = new byte[SHA1_SIZE];
+
+    public HashTreeVerifier() throws NoSuchAlgorithmException {
+        sha1 = MessageDigest.getInstance("SHA1");
+    }
+
+    /**
+     * Returns an idle verifier from the shared pool or a new one if none is available. It must be released after the current operation.
+     * 
+     * @return
+     * @throws NoSuchAlgorithmException
+     */
+    public static HashTreeVerifier borrow() throws NoSuchAlgorithmException {
+        HashTreeVerifier result = POOL.pollFirst();
+        if (result == null) {
+            return new HashTreeVerifier();
+        }
+        POOLED.decrementAndGet();
+        return result;
+    }
+
+    /**
+     * Returns the verifier to the shared pool. It must not be used after it has been released.
+     */
+    public static void release(HashTreeVerifier verifier) {
+        if (verifier == null) {
+            return;
+        }
+        if (POOLED.incrementAndGet() > MAX_POOLED_INSTANCES) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        verifier.sha1.reset();
+        POOL.offerFirst(verifier);
+    }
+
+    /**
+     * Verifies a run of consecutive decrypted blocks. Each block is expected to be stored as 0x400 bytes of hashes followed by 0xFC00 bytes of data.
+     * 
+     * @param blocks
+     * @param offset
+     *            offset of the first block in the buffer
+     * @param firstBlock
+     *            block number of the first block inside the content
+     * @param blockCount
+     * @param h3Hashes
+     *            h3 hashes of the content, may be <code>null</code>
+     * @throws CheckSumWrongException
+     */
+    public void verifyBlocks(byte[] blocks, int offset, long firstBlock, int blockCount, byte[] h3Hashes) throws CheckSumWrongException {
+        for (int i = 0; i < blockCount; i++) {
+            int blockOffset = offset + i * BLOCK_SIZE;
+            verify(blocks, blockOffset, h3Hashes, blocks, blockOffset + HASH_SIZE, DATA_SIZE, (int) (firstBlock + i));
+        }
+    }
+
+    /**
+     * Verifies a single decrypted block.
+     * 
+     * @param hashes
+     *            buffer containing the decrypted 0x400 bytes hash header
+     * @param hashesOffset
+     * @param h3Hashes
+     *            h3 hashes of the content, may be <code>null</code>
+     * @param data
+     *            buffer containing the decrypted data of the block
+     * @param dataOffset
+     * @param dataLength
+     * @param block
+     *            block number inside the content
+     * @throws CheckSumWrongException
+     */
+    public void verify(byte[] hashes, int hashesOffset, byte[] h3Hashes, byte[] data, int dataOffset, int dataLength, int block)
+            throws CheckSumWrongException {
+        int H0_start = hashesOffset + (block % 16) * SHA1_SIZE;
+        int H1_start = hashesOffset + (16 + (block / 16) % 16) * SHA1_SIZE;
+        int H2_start = hashesOffset + (32 + (block / 256) % 16) * SHA1_SIZE;
+        int H3_start = ((block / 4096) % 16) * SHA1_SIZE;
+
+        hash(data, dataOffset, dataLength);
+        check("h0", hashes, H0_start);
+
+        if ((block % 16) == 0) {
+            hash(hashes, H0_start, HASH_TABLE_SIZE);
+            check("h1", hashes, H1_start);
+        }
+
+        if ((block % 256) == 0) {
+            hash(hashes, H1_start, HASH_TABLE_SIZE);
+            check("h2", hashes, H2_start);
+        }
+
+        if (h3Hashes == null) {
+            log.warning("didn't check the h3, its missing.");
+            return;
+        }
+        if ((block % 4096) == 0) {
+            hash(hashes, H2_start, HASH_TABLE_SIZE);
+            check("h3", h3Hashes, H3_start);
+        }
+    }
+
+    private void hash(byte[] data, int offset, int length) {
+        sha1.update(data, offset, length);
+        try {
+            sha1.digest(digest, 0, SHA1_SIZE);
+        } catch (DigestException e) {
+            // Can't happen, the buffer always fits a SHA1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void check(String level, byte[] expected, int expectedOffset) throws CheckSumWrongException {
+        for (int i = 0; i < SHA1_SIZE; i++) {
+            if (digest[i] != expected[expectedOffset + i]) {
+                byte[] expectedHash = Arrays.copyOfRange(expected, expectedOffset, expectedOffset + SHA1_SIZE);
+                throw new CheckSumWrongException(level + " checksumfail", digest.clone(), expectedHash);
+            }
+        }
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(level + " checksum right!");
+        }
+    }
+}
@@ -99,8 +99,10 @@ public final class HashUtil {
         long target_size = alignment == 0 ? inputSize1 : Utils.align(inputSize1, alignment);
         long cur_position = 0;
         int inBlockBufferRead = 0;
-        byte[] blockBuffer = new byte[bufferSize];
-        ByteArrayBuffer overflow = new ByteArrayBuffer(bufferSize);
+        BufferPool pool = BufferPool.getInstance();
+        byte[] blockBuffer = pool.borrow(bufferSize);
+        byte[] overflowBuffer = pool.borrow(bufferSize);
+        ByteArrayBuffer overflow = new ByteArrayBuffer(overflowBuffer);
         try {
             do {
                 inBlockBufferRead = StreamUtils.getChunkFromStream(in, blockBuffer, overflow, bufferSize);
@@ -118,6 +120,8 @@ public final class HashUtil {
             }
         } finally {
             in.close();
+            pool.release(blockBuffer);
+            pool.release(overflowBuffer);
         }
 
         return digest.digest();
@@ -208,56 +212,11 @@ public final class HashUtil {
     }
 
     public static void checkFileChunkHashes(byte[] hashes, byte[] h3Hashes, byte[] output, int block) throws CheckSumWrongException, NoSuchAlgorithmException {
-        int H0_start = (block % 16) * 20;
-        int H1_start = (16 + (block / 16) % 16) * 20;
-        int H2_start = (32 + (block / 256) % 16) * 20;
-        int H3_start = ((block / 4096) % 16) * 20;
-
-        byte[] real_h0_hash = HashUtil.hashSHA1(output);
-        byte[] expected_h0_hash = Arrays.copyOfRange(hashes, H0_start, H0_start + 20);
-
-        if (!Arrays.equals(real_h0_hash, expected_h0_hash)) {
-            throw new CheckSumWrongException("h0 checksumfail", real_h0_hash, expected_h0_hash);
-        } else {
-            log.finest("h0 checksum right!");
-        }
-
-        if ((block % 16) == 0) {
-            byte[] expected_h1_hash = Arrays.copyOfRange(hashes, H1_start, H1_start + 20);
-            byte[] real_h1_hash = HashUtil.hashSHA1(Arrays.copyOfRange(hashes, H0_start, H0_start + (16 * 20)));
-
-            if (!Arrays.equals(expected_h1_hash, real_h1_hash)) {
-                throw new CheckSumWrongException("h1 checksumfail", real_h1_hash, expected_h1_hash);
-            } else {
-                log.finest("h1 checksum right!");
-            }
-        }
-
-        if ((block % 256) == 0) {
-            byte[] expected_h2_hash = Arrays.copyOfRange(hashes, H2_start, H2_start + 20);
-            byte[] real_h2_hash = HashUtil.hashSHA1(Arrays.copyOfRange(hashes, H1_start, H1_start + (16 * 20)));
-
-            if (!Arrays.equals(expected_h2_hash, real_h2_hash)) {
-                throw new CheckSumWrongException("h2 checksumfail", real_h2_hash, expected_h2_hash);
-            } else {
-                log.finest("h2 checksum right!");
-            }
-        }
-
-        if (h3Hashes == null) {
-            log.warning("didn't check the h3, its missing.");
-            return;
-        }
-        if ((block % 4096) == 0) {
-            byte[] expected_h3_hash = Arrays.copyOfRange(h3Hashes, H3_start, H3_start + 20);
-            byte[] real_h3_hash = HashUtil.hashSHA1(Arrays.copyOfRange(hashes, H2_start, H2_start + (16 * 20)));
-
-            if (!Arrays.equals(expected_h3_hash, real_h3_hash)) {
-                throw new CheckSumWrongException("h3 checksumfail", real_h3_hash, expected_h3_hash);
-            } else {
-                log.finest("h3 checksum right!");
-            }
+        HashTreeVerifier verifier = HashTreeVerifier.borrow();
+        try {
+            verifier.verify(hashes, 0, h3Hashes, output, 0, output.length, block);
+        } finally {
+            HashTreeVerifier.release(verifier);
         }
-
     }
 }
@@ -0,0 +1,85 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream over a source that supports positional reads. Skipping just moves the position and no thread or intermediate buffer is involved.
+ */
+public class PositionalInputStream extends InputStream {
+    private final PositionalReader reader;
+    private final long end;
+    private long position;
+    private boolean closed = false;
+
+    public PositionalInputStream(PositionalReader reader, long position, long size) {
+        this.reader = reader;
+        this.position = position;
+        this.end = position + size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int res = read(b, 0, 1);
+        return res < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= end) {
+            return -1;
+        }
+        int read = reader.read(position, ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)));
+        if (read <= 0) {
+            return -1;
+        }
+        position += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+    }
+
+    @FunctionalInterface
+    public interface PositionalReader {
+        /**
+         * Reads from the given position until <code>dst</code> is full or the end of the source has been reached.
+         * 
+         * @return number of bytes read
+         */
+        int read(long position, ByteBuffer dst) throws IOException;
+    }
+}
@@ -0,0 +1,191 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import lombok.Getter;
+
+/**
+ * Adds an adaptive read-ahead to a positional source. As long as the reads are sequential the next window is prefetched asynchronously and the window
+ * doubles with each read from {@link #MIN_WINDOW} up to the given maximum. A random read drops the prefetched data, resets the window and goes straight
+ * to the source.
+ * 
+ * Small gaps or overlaps (up to {@link #SEQUENTIAL_TOLERANCE} bytes) still count as sequential, e.g. when each read includes the last 16 bytes of the
+ * previous one as IV.
+ */
+public class ReadAheadReader implements PositionalInputStream.PositionalReader, Closeable {
+    public static final int MIN_WINDOW = 0x10000;
+    public static final int DEFAULT_MAX_WINDOW = 0x100000;
+    public static final int SEQUENTIAL_TOLERANCE = 0x1000;
+
+    private final PositionalInputStream.PositionalReader source;
+    private final Executor executor;
+    private final int maxWindow;
+
+    @Getter private int window = MIN_WINDOW;
+    private long expectedPosition = -1;
+    private Segment current;
+    private CompletableFuture<Segment> next;
+    private boolean closed = false;
+
+    public ReadAheadReader(PositionalInputStream.PositionalReader source, Executor executor, int maxWindow) {
+        this.source = source;
+        this.executor = executor;
+        this.maxWindow = Math.max(MIN_WINDOW, maxWindow);
+    }
+
+    @Override
+    public synchronized int read(long position, ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new IOException("Reader closed");
+        }
+        if (expectedPosition < 0 || Math.abs(position - expectedPosition) > SEQUENTIAL_TOLERANCE) {
+            reset();
+            int read = source.read(position, dst);
+            expectedPosition = position + Math.max(read, 0);
+            return read;
+        }
+
+        int total = 0;
+        while (dst.hasRemaining()) {
+            long curPosition = position + total;
+            if (current != null && current.contains(curPosition)) {
+                total += current.copyTo(curPosition, dst);
+                continue;
+            }
+            if (current != null && current.isEOF() && curPosition >= current.start) {
+                break;
+            }
+            Segment segment = null;
+            if (next != null) {
+                segment = join(next);
+                next = null;
+                if (!segment.contains(curPosition)) {
+                    segment.release();
+                    segment = null;
+                }
+            }
+            if (segment == null) {
+                // Nothing usable has been prefetched, read synchronously.
+                segment = fetch(curPosition, Math.max(window, dst.remaining()));
+            }
+            replaceCurrent(segment);
+            if (segment.length == 0) {
+                break;
+            }
+        }
+        expectedPosition = position + total;
+        window = Math.min(window * 2, maxWindow);
+
+        if (next == null && current != null && !current.isEOF()) {
+            long nextStart = current.start + current.length;
+            int nextSize = window;
+            next = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return fetch(nextStart, nextSize);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        }
+        return total;
+    }
+
+    private Segment fetch(long position, int size) throws IOException {
+        byte[] data = BufferPool.getInstance().borrow(size);
+        try {
+            int read = source.read(position, ByteBuffer.wrap(data, 0, size));
+            return new Segment(data, position, read, read < size);
+        } catch (IOException | RuntimeException e) {
+            BufferPool.getInstance().release(data);
+            throw e;
+        }
+    }
+
+    private static Segment join(CompletableFuture<Segment> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void replaceCurrent(Segment segment) {
+        if (current != null) {
+            current.release();
+        }
+        current = segment;
+    }
+
+    private void reset() {
+        window = MIN_WINDOW;
+        replaceCurrent(null);
+        if (next != null) {
+            // The prefetch can't be interrupted, its buffer is released once it is done.
+            next.thenAccept(Segment::release);
+            next = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        reset();
+        closed = true;
+    }
+
+    private static class Segment {
+        private final byte[] data;
+        private final long start;
+        private final int length;
+        private final boolean eof;
+
+        Segment(byte[] data, long start, int length, boolean eof) {
+            this.data = data;
+            this.start = start;
+            this.length = length;
+            this.eof = eof;
+        }
+
+        boolean contains(long position) {
+            return position >= start && position < start + length;
+        }
+
+        boolean isEOF() {
+            return eof;
+        }
+
+        int copyTo(long position, ByteBuffer dst) {
+            int offset = (int) (position - start);
+            int len = Math.min(length - offset, dst.remaining());
+            dst.put(data, offset, len);
+            return len;
+        }
+
+        void release() {
+            BufferPool.getInstance().release(data);
+        }
+    }
+}
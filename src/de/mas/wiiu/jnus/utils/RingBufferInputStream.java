@@ -0,0 +1,256 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.mas.wiiu.jnus.ExecutionContext;
+import de.mas.wiiu.jnus.interfaces.CheckedFunction;
+import de.mas.wiiu.jnus.interfaces.InputStreamWithException;
+
+/**
+ * Hands data from one producer to one consumer through a bounded ring buffer. Unlike the piped streams, both sides are woken up directly when data or space
+ * is available, and the end of the stream as well as exceptions of the producer are signaled to the consumer without polling.
+ * 
+ * The producer writes into {@link #getOutputStream()} and has to call {@link #finish(Exception)} when it's done. If the consumer closes the stream early,
+ * the producer gets an IOException with the message "Pipe closed", like with a PipedOutputStream.
+ */
+public class RingBufferInputStream extends InputStream implements InputStreamWithException {
+    public static final int DEFAULT_BUFFER_SIZE = 0x40000;
+
+    private byte[] buffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final OutputStream outputStream = new RingBufferOutputStream();
+
+    private int readPos = 0;
+    private int count = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    private Exception exception = null;
+
+    public RingBufferInputStream(int bufferSize) {
+        this.buffer = BufferPool.getInstance().borrow(bufferSize);
+    }
+
+    /**
+     * Runs the producer on the I/O executor of the default {@link ExecutionContext} and returns the stream it writes to.
+     */
+    public static RingBufferInputStream start(int bufferSize, CheckedFunction<OutputStream> producer) {
+        return start(ExecutionContext.getDefault().getIoExecutor(), bufferSize, producer);
+    }
+
+    /**
+     * Runs the producer on the given executor and returns the stream it writes to.
+     */
+    public static RingBufferInputStream start(Executor executor, int bufferSize, CheckedFunction<OutputStream> producer) {
+        RingBufferInputStream in = new RingBufferInputStream(bufferSize);
+        executor.execute(() -> {
+            Exception result = null;
+            try {
+                producer.apply(in.getOutputStream());
+            } catch (Exception e) {
+                result = e;
+            } finally {
+                in.finish(result);
+            }
+        });
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Marks the end of the stream. If an exception is given, it will be thrown to the consumer.
+     */
+    public void finish(Exception e) {
+        lock.lock();
+        try {
+            finished = true;
+            exception = e;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int res = read(b, 0, 1);
+        return res < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (true) {
+                throwPendingException();
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (count > 0) {
+                    break;
+                }
+                if (finished) {
+                    return -1;
+                }
+                notEmpty.await();
+            }
+            int n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - readPos);
+            System.arraycopy(buffer, readPos, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            readPos = (readPos + n) % buffer.length;
+            count -= n;
+            notFull.signal();
+            return n;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        byte[] tmp = new byte[(int) Math.min(0x8000, Math.max(n, 1))];
+        while (skipped < n) {
+            int res = read(tmp, 0, (int) Math.min(tmp.length, n - skipped));
+            if (res < 0) {
+                break;
+            }
+            skipped += res;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        lock.lock();
+        try {
+            throwPendingException();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (!closed) {
+                // Neither side touches the buffer once the stream is closed.
+                BufferPool.getInstance().release(buffer);
+                buffer = null;
+            }
+            closed = true;
+            count = 0;
+            notFull.signalAll();
+            throwPendingException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void checkForException() throws Exception {
+        lock.lock();
+        try {
+            if (exception != null) {
+                Exception tmp = exception;
+                exception = null;
+                throw tmp;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void throwPendingException() throws IOException {
+        if (exception != null) {
+            Exception tmp = exception;
+            exception = null;
+            throw tmp instanceof IOException ? (IOException) tmp : new IOException(tmp);
+        }
+    }
+
+    private class RingBufferOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n;
+                lock.lock();
+                try {
+                    while (!closed && count == buffer.length) {
+                        notFull.await();
+                    }
+                    if (closed) {
+                        throw new IOException("Pipe closed");
+                    }
+                    if (finished) {
+                        throw new IOException("Write end dead");
+                    }
+                    n = Math.min(len, buffer.length - count);
+                    int writePos = (readPos + count) % buffer.length;
+                    int first = Math.min(n, buffer.length - writePos);
+                    System.arraycopy(b, off, buffer, writePos, first);
+                    System.arraycopy(b, off + first, buffer, 0, n - first);
+                    count += n;
+                    notEmpty.signal();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } finally {
+                    lock.unlock();
+                }
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Does not end the stream, the producer has to call {@link RingBufferInputStream#finish(Exception)}. This way an exception thrown after closing
+         * the output is not lost.
+         */
+        @Override
+        public void close() {
+            // Nothing to do.
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import de.mas.wiiu.jnus.ExecutionContext;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.java.Log;
+
+/**
+ * Processes an InputStream in three stages connected by bounded queues. One reader task on the I/O executor reads the input into chunks, the chunks are
+ * processed (e.g. decrypted and verified) on the CPU executor and the calling thread writes the processed chunks in order. This way reading, processing
+ * and writing overlap. At most <code>queueDepth</code> chunks are in flight, their buffers are reused.
+ */
+@Log
+public class StreamPipeline {
+    public static final int DEFAULT_QUEUE_DEPTH = 8;
+
+    private final ExecutionContext context;
+    @Getter private final int queueDepth;
+    @Getter private final int chunkSize;
+
+    public StreamPipeline(ExecutionContext context, int queueDepth, int chunkSize) {
+        this.context = context;
+        this.queueDepth = Math.max(1, queueDepth);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads <code>size</code> bytes from the input and passes them through the stages. The input stream will be closed.
+     * 
+     * @param in
+     * @param size
+     * @param processor
+     *            runs on the CPU executor, may be <code>null</code>
+     * @param writer
+     *            runs on the calling thread in order of the chunks
+     * @return the number of bytes that have been read
+     * @throws IOException
+     * @throws CheckSumWrongException
+     */
+    public long run(InputStream in, long size, ChunkProcessor processor, ChunkWriter writer) throws IOException, CheckSumWrongException {
+        BufferPool pool = BufferPool.getInstance();
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(queueDepth);
+        for (int i = 0; i < queueDepth; i++) {
+            free.add(new Chunk(pool.borrow(chunkSize)));
+        }
+        // One additional slot for the end/error marker.
+        BlockingQueue<Chunk> ordered = new ArrayBlockingQueue<>(queueDepth + 1);
+        Reader reader = new Reader(in, size, processor, free, ordered);
+
+        context.getIoExecutor().execute(reader);
+
+        boolean completed = false;
+        try {
+            while (true) {
+                Chunk chunk = ordered.take();
+                if (chunk.error != null) {
+                    throw chunk.error;
+                }
+                if (chunk.length < 0) {
+                    completed = true;
+                    break;
+                }
+                chunk.done.join();
+
+                boolean next = writer.write(chunk);
+                free.add(chunk);
+                if (!next) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (Exception e) {
+            throw unwrap(e);
+        } finally {
+            reader.cancelled = true;
+            // Wake up the reader if it's waiting for a free chunk or a free slot.
+            ordered.clear();
+            free.offer(new Chunk(new byte[0]));
+            if (completed) {
+                // All chunks went through the writer and the reader is done, so nobody can touch the buffers anymore.
+                // After an early exit they may still be in use by the reader or a processor and are left to the GC.
+                for (Chunk chunk : free) {
+                    pool.release(chunk.data);
+                }
+            }
+        }
+        return reader.totalRead;
+    }
+
+    private static IOException unwrap(Exception e) throws CheckSumWrongException {
+        Throwable cause = e;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof CheckSumWrongException) {
+            throw (CheckSumWrongException) cause;
+        } else if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException(cause);
+    }
+
+    private class Reader implements Runnable {
+        private final InputStream in;
+        private final long size;
+        private final ChunkProcessor processor;
+        private final BlockingQueue<Chunk> free;
+        private final BlockingQueue<Chunk> ordered;
+        private final byte[] lastBlock = new byte[Chunk.PREVIOUS_BLOCK_SIZE];
+
+        private volatile boolean cancelled = false;
+        private volatile long totalRead = 0;
+
+        Reader(InputStream in, long size, ChunkProcessor processor, BlockingQueue<Chunk> free, BlockingQueue<Chunk> ordered) {
+            this.in = in;
+            this.size = size;
+            this.processor = processor;
+            this.free = free;
+            this.ordered = ordered;
+        }
+
+        @Override
+        public void run() {
+            Chunk marker = new Chunk(new byte[0]);
+            marker.length = -1;
+            try {
+                long index = 0;
+                while (totalRead < size && !cancelled) {
+                    Chunk chunk = free.take();
+                    if (cancelled) {
+                        break;
+                    }
+                    int toRead = (int) Math.min(chunkSize, size - totalRead);
+                    int read = StreamUtils.readFully(in, chunk.data, 0, toRead);
+
+                    chunk.index = index++;
+                    chunk.position = totalRead;
+                    chunk.length = read;
+                    chunk.result = null;
+                    System.arraycopy(lastBlock, 0, chunk.previousBlock, 0, lastBlock.length);
+                    if (read >= lastBlock.length) {
+                        System.arraycopy(chunk.data, read - lastBlock.length, lastBlock, 0, lastBlock.length);
+                    }
+                    totalRead += read;
+
+                    if (processor == null) {
+                        chunk.done = CompletableFuture.completedFuture(null);
+                    } else {
+                        chunk.done = CompletableFuture.runAsync(() -> {
+                            try {
+                                processor.process(chunk);
+                            } catch (Exception e) {
+                                throw new CompletionException(e);
+                            }
+                        }, context.getCpuExecutor());
+                    }
+                    ordered.put(chunk);
+
+                    if (read < toRead) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                if (!cancelled) {
+                    marker.error = e;
+                }
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.fine(e.getMessage());
+                }
+                if (!cancelled) {
+                    ordered.offer(marker);
+                }
+            }
+        }
+    }
+
+    public static class Chunk {
+        public static final int PREVIOUS_BLOCK_SIZE = 0x10;
+
+        /** Data of the chunk, processors work in place. */
+        @Getter private final byte[] data;
+        /** The last 16 bytes of the previous chunk as they have been read, e.g. the CBC IV of this chunk. */
+        @Getter private final byte[] previousBlock = new byte[PREVIOUS_BLOCK_SIZE];
+        @Getter private long index;
+        /** Position of the chunk inside the input. */
+        @Getter private long position;
+        @Getter private int length;
+        /** Optional result of the processor for the writer, e.g. hashes of the data. */
+        @Getter @Setter private Object result;
+
+        private CompletableFuture<Void> done;
+        private Exception error;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    @FunctionalInterface
+    public interface ChunkProcessor {
+        void process(Chunk chunk) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface ChunkWriter {
+        /**
+         * @return <code>false</code> if no more chunks should be written
+         */
+        boolean write(Chunk chunk) throws IOException;
+    }
+}
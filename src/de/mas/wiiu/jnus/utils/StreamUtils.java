@@ -21,10 +21,12 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
+import de.mas.wiiu.jnus.ExecutionContext;
 import lombok.extern.java.Log;
 
 @Log
@@ -45,23 +47,8 @@ public final class StreamUtils {
         try {
             synchronized (in) {
                 byte[] result = new byte[size];
-                byte[] buffer = null;
-                if (size < 0x8000) {
-                    buffer = new byte[size];
-                } else {
-                    buffer = new byte[0x8000];
-                }
-                int toRead = size;
-                int curReadChunk = buffer.length;
-                do {
-                    if (toRead < curReadChunk) {
-                        curReadChunk = toRead;
-                    }
-                    int read = in.read(buffer, 0, curReadChunk);
-                    if (read < 0) break;
-                    System.arraycopy(buffer, 0, result, size - toRead, read);
-                    toRead -= read;
-                } while (toRead > 0);
+                // Read straight into the result, no intermediate buffer needed.
+                readFully(in, result, 0, size);
                 return result;
             }
         } finally {
@@ -124,6 +111,56 @@ public final class StreamUtils {
         }
     }
 
+    /**
+     * Reads from the stream until the given range of the buffer is filled or the end of the stream is reached. The stream will NOT be closed.
+     * 
+     * @param in
+     * @param buffer
+     * @param offset
+     * @param len
+     * @return the number of bytes that have been read
+     * @throws IOException
+     */
+    public static int readFully(InputStream in, byte[] buffer, int offset, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int read = in.read(buffer, offset + total, len - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Reads from the stream until <code>dst</code> is full or the stream ends.
+     * 
+     * @return number of bytes read
+     */
+    public static int readFully(InputStream in, ByteBuffer dst) throws IOException {
+        if (dst.hasArray()) {
+            int read = readFully(in, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            dst.position(dst.position() + read);
+            return read;
+        }
+        byte[] buffer = BufferPool.getInstance().borrow(0x8000);
+        int total = 0;
+        try {
+            while (dst.hasRemaining()) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, dst.remaining()));
+                if (read < 0) {
+                    break;
+                }
+                dst.put(buffer, 0, read);
+                total += read;
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+        return total;
+    }
+
     public static void saveInputStreamToOutputStream(InputStream inputStream, OutputStream outputStream, long filesize) throws IOException {
         try {
             saveInputStreamToOutputStreamWithHash(inputStream, outputStream, filesize, null, 0L, true);
@@ -133,6 +170,28 @@ public final class StreamUtils {
         }
     }
 
+    /**
+     * Like {@link #saveInputStreamToOutputStream(InputStream, OutputStream, long)}, but reads ahead on a separate thread while writing. Up to
+     * <code>queueDepth</code> chunks of 0x8000 bytes are buffered between reading and writing. A depth of 0 falls back to the plain copy.
+     */
+    public static void saveInputStreamToOutputStream(InputStream inputStream, OutputStream outputStream, long filesize, int queueDepth) throws IOException {
+        if (queueDepth <= 0) {
+            saveInputStreamToOutputStream(inputStream, outputStream, filesize);
+            return;
+        }
+        try {
+            new StreamPipeline(ExecutionContext.getDefault(), queueDepth, 0x8000).run(inputStream, filesize, null, chunk -> {
+                outputStream.write(chunk.getData(), 0, chunk.getLength());
+                return true;
+            });
+        } catch (CheckSumWrongException e) {
+            // Should never happen because nothing is verified. Lets print it anyway.
+            e.printStackTrace();
+        } finally {
+            StreamUtils.closeAll(inputStream, outputStream);
+        }
+    }
+
     public static void saveInputStreamToOutputStreamWithHash(InputStream inputStream, OutputStream outputStream, long filesize, byte[] hash,
             long expectedSizeForHash, boolean partial) throws IOException, CheckSumWrongException {
         synchronized (inputStream) {
@@ -147,7 +206,7 @@ public final class StreamUtils {
             }
 
             int BUFFER_SIZE = 0x8000;
-            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] buffer = BufferPool.getInstance().borrow(BUFFER_SIZE);
             int read = 0;
             long totalRead = 0;
             long written = 0;
@@ -187,6 +246,7 @@ public final class StreamUtils {
 
             } finally {
                 StreamUtils.closeAll(inputStream, outputStream);
+                BufferPool.getInstance().release(buffer);
             }
         }
     }
@@ -0,0 +1,48 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads for blocking I/O. This is the Java 8 version which uses a cached pool of daemon threads. A multi-release jar built with Java 21+
+ * contains a version using virtual threads (see src-java21).
+ */
+public final class ThreadSupport {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private ThreadSupport() {
+        // Utility class
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return false;
+    }
+
+    /**
+     * Returns a new executor that starts a thread for every task if no idle one is available.
+     */
+    public static ExecutorService newIOExecutor() {
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "JNUSLib-io-" + THREAD_COUNT.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
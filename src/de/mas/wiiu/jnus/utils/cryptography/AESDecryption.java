@@ -16,6 +16,7 @@
  ****************************************************************************/
 package de.mas.wiiu.jnus.utils.cryptography;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -24,6 +25,7 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -31,11 +33,18 @@ import lombok.Getter;
 import lombok.Setter;
 
 public class AESDecryption {
+    public static final int AES_BLOCK_SIZE = 0x10;
+
     private Cipher cipher;
 
     @Getter @Setter private byte[] AESKey;
     @Getter @Setter private byte[] IV;
 
+    // The IV the cipher has been initialized with, the CBC state the cipher will use for the next update call and a scratch buffer to save the next one.
+    private final byte[] initIV = new byte[AES_BLOCK_SIZE];
+    private byte[] cipherChain = new byte[AES_BLOCK_SIZE];
+    private byte[] nextCipherChain = new byte[AES_BLOCK_SIZE];
+
     public AESDecryption(byte[] AESKey, byte[] IV) {
         try {
             cipher = Cipher.getInstance("AES/CBC/NoPadding");
@@ -59,29 +68,131 @@ public class AESDecryption {
             e.printStackTrace();
             System.exit(2);
         }
+        System.arraycopy(iv, 0, initIV, 0, AES_BLOCK_SIZE);
+        System.arraycopy(iv, 0, cipherChain, 0, AES_BLOCK_SIZE);
     }
 
     public byte[] decrypt(byte[] input) {
+        return decrypt(input, 0, input.length);
+    }
+
+    public byte[] decrypt(byte[] input, int len) {
+        return decrypt(input, 0, len);
+    }
+
+    public byte[] decrypt(byte[] input, int offset, int len) {
         try {
-            return cipher.doFinal(input);
+            byte[] result = cipher.doFinal(input, offset, len);
+            // The cipher may have been chained by a previous update, but this call always starts with the current IV.
+            byte[] IV = getIV();
+            for (int i = 0; i < AES_BLOCK_SIZE && i < result.length; i++) {
+                result[i] ^= cipherChain[i] ^ IV[i];
+            }
+            return result;
         } catch (IllegalBlockSizeException | BadPaddingException e) {
             e.printStackTrace();
             System.exit(2);
+        } finally {
+            // doFinal resets the cipher to the IV it was initialized with.
+            System.arraycopy(initIV, 0, cipherChain, 0, AES_BLOCK_SIZE);
         }
         return input;
     }
 
-    public byte[] decrypt(byte[] input, int len) {
-        return decrypt(input, 0, len);
+    /**
+     * Decrypts <code>len</code> bytes into the given output buffer and continues the CBC chain of the previous call. No memory is allocated. Input and output
+     * may be the same array.
+     * 
+     * @param input
+     * @param inputOffset
+     * @param len
+     *            needs to be a multiple of 16
+     * @param output
+     * @param outputOffset
+     * @return the number of bytes written into the output
+     */
+    public int decrypt(byte[] input, int inputOffset, int len, byte[] output, int outputOffset) {
+        return decrypt(input, inputOffset, len, output, outputOffset, null, 0);
     }
 
-    public byte[] decrypt(byte[] input, int offset, int len) {
+    /**
+     * Decrypts <code>len</code> bytes into the given output buffer using the IV at <code>IV[IVOffset]</code>. Instead of re-initializing the cipher, the
+     * first block of the output is corrected by the difference between the chained and the wanted IV. No memory is allocated. Input and output may be the
+     * same array.
+     * 
+     * @param input
+     * @param inputOffset
+     * @param len
+     *            needs to be a multiple of 16
+     * @param output
+     * @param outputOffset
+     * @param IV
+     *            IV that should be used, <code>null</code> to continue the CBC chain of the previous call.
+     * @param IVOffset
+     * @return the number of bytes written into the output
+     */
+    public int decrypt(byte[] input, int inputOffset, int len, byte[] output, int outputOffset, byte[] IV, int IVOffset) {
+        if (len <= 0) {
+            return 0;
+        }
+        System.arraycopy(input, inputOffset + len - AES_BLOCK_SIZE, nextCipherChain, 0, AES_BLOCK_SIZE);
+        int result = 0;
         try {
-            return cipher.doFinal(input, offset, len);
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            result = cipher.update(input, inputOffset, len, output, outputOffset);
+        } catch (ShortBufferException e) {
             e.printStackTrace();
             System.exit(2);
         }
-        return input;
+        if (IV != null) {
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                output[outputOffset + i] ^= cipherChain[i] ^ IV[IVOffset + i];
+            }
+        }
+        swapCipherChain();
+        return result;
+    }
+
+    /**
+     * Decrypts the remaining bytes of the input buffer into the output buffer. Works the same way as
+     * {@link #decrypt(byte[], int, int, byte[], int, byte[], int)}, but allows direct ByteBuffers. Input and output must not share their content.
+     * 
+     * @param input
+     *            remaining bytes need to be a multiple of 16
+     * @param output
+     * @param IV
+     *            IV that should be used, <code>null</code> to continue the CBC chain of the previous call.
+     * @param IVOffset
+     * @return the number of bytes written into the output
+     */
+    public int decrypt(ByteBuffer input, ByteBuffer output, byte[] IV, int IVOffset) {
+        int len = input.remaining();
+        if (len <= 0) {
+            return 0;
+        }
+        int lastBlock = input.position() + len - AES_BLOCK_SIZE;
+        for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+            nextCipherChain[i] = input.get(lastBlock + i);
+        }
+        int outputPosition = output.position();
+        int result = 0;
+        try {
+            result = cipher.update(input, output);
+        } catch (ShortBufferException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+        if (IV != null) {
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                output.put(outputPosition + i, (byte) (output.get(outputPosition + i) ^ cipherChain[i] ^ IV[IVOffset + i]));
+            }
+        }
+        swapCipherChain();
+        return result;
+    }
+
+    private void swapCipherChain() {
+        byte[] tmp = cipherChain;
+        cipherChain = nextCipherChain;
+        nextCipherChain = tmp;
     }
 }
@@ -0,0 +1,128 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils.cryptography;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import de.mas.wiiu.jnus.entities.content.Content;
+import lombok.Data;
+import lombok.Getter;
+
+/**
+ * Bounded LRU cache for decrypted (and verified) blocks of contents. The blocks are identified by the title, the ID and hash of the content and the block
+ * number inside the content, different versions of a title don't share blocks. The size of the cache is limited by the sum of the cached bytes. The cache
+ * can be shared between multiple titles and threads.
+ */
+public class DecryptedBlockCache {
+    @Getter private final long maxSize;
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private final LinkedHashMap<BlockKey, byte[]> blocks = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxSize
+     *            maximum number of cached bytes
+     */
+    public DecryptedBlockCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Copies the cached block into the buffer.
+     * 
+     * @return the length of the block or -1 if the block is not cached
+     */
+    public synchronized int get(long titleID, Content content, long block, byte[] buffer, int offset) {
+        byte[] data = blocks.get(new BlockKey(titleID, content.getID(), content.getSHA2Hash(), block));
+        if (data == null) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        System.arraycopy(data, 0, buffer, offset, data.length);
+        return data.length;
+    }
+
+    /**
+     * Adds a copy of the block to the cache. The least recently used blocks will be evicted if the cache is full.
+     */
+    public synchronized void put(long titleID, Content content, long block, byte[] buffer, int offset, int length) {
+        if (length > maxSize) {
+            return;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+
+        byte[] old = blocks.put(new BlockKey(titleID, content.getID(), content.getSHA2Hash(), block), data);
+        if (old != null) {
+            size -= old.length;
+        }
+        size += length;
+
+        Iterator<Entry<BlockKey, byte[]>> it = blocks.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getValue().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getBlockCount() {
+        return blocks.size();
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        size = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DecryptedBlockCache [size=" + size + ", maxSize=" + maxSize + ", blocks=" + blocks.size() + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+
+    @Data
+    private static class BlockKey {
+        private final long titleID;
+        private final int contentID;
+        private final byte[] contentHash;
+        private final long block;
+    }
+}
@@ -0,0 +1,100 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils.cryptography;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.mas.wiiu.jnus.utils.ByteArrayWrapper;
+
+/**
+ * Shared pool of initialized ciphers per key. Creating a cipher means a provider lookup and a key expansion, which adds up when thousands of small files
+ * are decrypted. The contexts don't depend on the calling thread, a borrowed context must only be used by one thread at a time and has to be released
+ * after the current operation.
+ */
+public final class DecryptionContextCache {
+    public static final int MAX_KEYS = 8;
+    public static final int MAX_CONTEXTS_PER_KEY = 16;
+
+    private static final Contexts CONTEXTS = new Contexts();
+
+    private DecryptionContextCache() {
+        // Utility class
+    }
+
+    /**
+     * Returns an idle decryption context for the given key or creates a new one. The cipher is only initialized on creation, afterwards only the IV is
+     * set.
+     * 
+     * @param key
+     * @param IV
+     * @return
+     */
+    public static NUSDecryption borrow(byte[] key, byte[] IV) {
+        NUSDecryption result = null;
+        synchronized (CONTEXTS) {
+            Deque<NUSDecryption> idle = CONTEXTS.get(new ByteArrayWrapper(key));
+            if (idle != null) {
+                result = idle.pollFirst();
+            }
+        }
+        if (result == null) {
+            result = new NUSDecryption(key.clone(), IV);
+        }
+        result.setIV(IV);
+        return result;
+    }
+
+    /**
+     * Returns the context to the pool. It must not be used after it has been released.
+     */
+    public static void release(NUSDecryption context) {
+        if (context == null) {
+            return;
+        }
+        synchronized (CONTEXTS) {
+            Deque<NUSDecryption> idle = CONTEXTS.computeIfAbsent(new ByteArrayWrapper(context.getAESKey()), k -> new ArrayDeque<>());
+            if (idle.size() < MAX_CONTEXTS_PER_KEY) {
+                idle.offerFirst(context);
+            }
+        }
+    }
+
+    /**
+     * Removes all idle contexts.
+     */
+    public static void clear() {
+        synchronized (CONTEXTS) {
+            CONTEXTS.clear();
+        }
+    }
+
+    private static class Contexts extends LinkedHashMap<ByteArrayWrapper, Deque<NUSDecryption>> {
+        private static final long serialVersionUID = -2469720468766400591L;
+
+        Contexts() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Deque<NUSDecryption>> eldest) {
+            return size() > MAX_KEYS;
+        }
+    }
+}
@@ -25,17 +25,25 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Optional;
 
+import de.mas.wiiu.jnus.ExecutionContext;
 import de.mas.wiiu.jnus.entities.Ticket;
 import de.mas.wiiu.jnus.entities.content.Content;
+import de.mas.wiiu.jnus.utils.BufferPool;
 import de.mas.wiiu.jnus.utils.ByteArrayBuffer;
 import de.mas.wiiu.jnus.utils.CheckSumWrongException;
-import de.mas.wiiu.jnus.utils.HashUtil;
+import de.mas.wiiu.jnus.utils.HashTreeVerifier;
 import de.mas.wiiu.jnus.utils.StreamUtils;
 import de.mas.wiiu.jnus.utils.Utils;
 import lombok.extern.java.Log;
 
 @Log
 public class NUSDecryption extends AESDecryption {
+    private static final byte[] ZERO_IV = new byte[AES_BLOCK_SIZE];
+    // Hashed ranges with at least this many blocks are decrypted on multiple threads.
+    private static final int PARALLEL_HASHED_MIN_BLOCKS = 0x20;
+    // Non-hashed ranges with at least this size are decrypted on multiple threads.
+    private static final long PARALLEL_NON_HASHED_MIN_SIZE = 0x200000;
+
     public NUSDecryption(byte[] AESKey, byte[] IV) {
         super(AESKey, IV);
     }
@@ -44,23 +52,21 @@ public class NUSDecryption extends AESDecryption {
         this(ticket.getDecryptedKey(), ticket.getIV());
     }
 
-    private byte[] decryptFileChunk(byte[] blockBuffer, int BLOCKSIZE, byte[] IV) {
-        return decryptFileChunk(blockBuffer, 0, BLOCKSIZE, IV);
-    }
-
-    private byte[] decryptFileChunk(byte[] blockBuffer, int offset, int BLOCKSIZE, byte[] IV) {
-        if (IV != null) {
-            setIV(IV);
-            init();
-        }
-        return decrypt(blockBuffer, offset, BLOCKSIZE);
+    public void decryptFileStream(InputStream inputStream, OutputStream outputStream, long fileOffset, long filesize, byte[] IV, byte[] h3hash,
+            long expectedSizeForHash) throws IOException, CheckSumWrongException {
+        decryptFileStream(inputStream, outputStream, fileOffset, filesize, IV, h3hash, expectedSizeForHash, ExecutionContext.getDefault());
     }
 
     public void decryptFileStream(InputStream inputStream, OutputStream outputStream, long fileOffset, long filesize, byte[] IV, byte[] h3hash,
-            long expectedSizeForHash) throws IOException, CheckSumWrongException {
+            long expectedSizeForHash, ExecutionContext context) throws IOException, CheckSumWrongException {
         MessageDigest sha1 = null;
         MessageDigest sha1fallback = null;
 
+        if (context.getCpuParallelism() > 1 && IV != null && filesize >= PARALLEL_NON_HASHED_MIN_SIZE) {
+            new ParallelCBCDecryption(getAESKey(), context).decryptFileStream(inputStream, outputStream, filesize, IV, h3hash, expectedSizeForHash);
+            return;
+        }
+
         if (h3hash != null) {
             try {
                 sha1 = MessageDigest.getInstance("SHA1");
@@ -72,14 +78,18 @@ public class NUSDecryption extends AESDecryption {
 
         int BLOCKSIZE = 0x8000;
 
-        byte[] blockBuffer = new byte[BLOCKSIZE];
+        BufferPool pool = BufferPool.getInstance();
+        byte[] blockBuffer = pool.borrow(BLOCKSIZE);
+        byte[] output = pool.borrow(BLOCKSIZE);
+        byte[] overflowBuffer = pool.borrow(BLOCKSIZE);
+        byte[] chainedIV = new byte[AES_BLOCK_SIZE];
 
         int inBlockBuffer;
         long written = 0;
         long writtenFallback = 0;
 
         try {
-            ByteArrayBuffer overflow = new ByteArrayBuffer(BLOCKSIZE);
+            ByteArrayBuffer overflow = new ByteArrayBuffer(overflowBuffer);
 
             // We can only decrypt multiples of 16. So we need to align it.
             long toRead = Utils.align(filesize, 16);
@@ -93,10 +103,14 @@ public class NUSDecryption extends AESDecryption {
 
                 inBlockBuffer = StreamUtils.getChunkFromStream(inputStream, blockBuffer, overflow, curReadSize);
 
-                byte[] output = decryptFileChunk(blockBuffer, (int) Utils.align(inBlockBuffer, 16), IV);
+                int decryptSize = (int) Utils.align(inBlockBuffer, 16);
+                decrypt(blockBuffer, 0, decryptSize, output, 0, IV, 0);
 
-                if (inBlockBuffer == BLOCKSIZE) {
-                    IV = Arrays.copyOfRange(blockBuffer, BLOCKSIZE - 16, BLOCKSIZE);
+                // The IV of the next chunk is the last encrypted block of this one. We pass it explicitly, this way the (maybe shared) cipher doesn't need to
+                // keep any state between the chunks.
+                if (IV != null && decryptSize > 0) {
+                    System.arraycopy(blockBuffer, decryptSize - AES_BLOCK_SIZE, chainedIV, 0, AES_BLOCK_SIZE);
+                    IV = chainedIV;
                 }
 
                 int toWrite = inBlockBuffer;
@@ -146,6 +160,9 @@ public class NUSDecryption extends AESDecryption {
             }
         } finally {
             StreamUtils.closeAll(inputStream, outputStream);
+            pool.release(blockBuffer);
+            pool.release(output);
+            pool.release(overflowBuffer);
         }
         if (written < filesize) {
             throw new IOException("Failed to read. Missing " + (filesize - written));
@@ -154,6 +171,11 @@ public class NUSDecryption extends AESDecryption {
 
     public void decryptFileStreamHashed(InputStream inputStream, OutputStream outputStream, long fileoffset, long filesize, byte[] h3Hash)
             throws IOException, CheckSumWrongException, NoSuchAlgorithmException {
+        decryptFileStreamHashed(inputStream, outputStream, fileoffset, filesize, h3Hash, ExecutionContext.getDefault());
+    }
+
+    public void decryptFileStreamHashed(InputStream inputStream, OutputStream outputStream, long fileoffset, long filesize, byte[] h3Hash,
+            ExecutionContext context) throws IOException, CheckSumWrongException, NoSuchAlgorithmException {
         int BLOCKSIZE = 0x10000;
         int HASHBLOCKSIZE = 0xFC00;
 
@@ -162,13 +184,22 @@ public class NUSDecryption extends AESDecryption {
         long block = (fileoffset / HASHBLOCKSIZE);
         long soffset = fileoffset - (fileoffset / HASHBLOCKSIZE * HASHBLOCKSIZE);
 
+        if (context.getCpuParallelism() > 1 && (soffset + filesize) / HASHBLOCKSIZE >= PARALLEL_HASHED_MIN_BLOCKS) {
+            new ParallelHashedDecryption(getAESKey(), context).decryptFileStreamHashed(inputStream, outputStream, fileoffset, filesize, h3Hash);
+            return;
+        }
+
         if (soffset + filesize > writeSize) {
             writeSize = writeSize - soffset;
 
         }
 
-        byte[] encryptedBlockBuffer = new byte[BLOCKSIZE];
-        ByteArrayBuffer overflow = new ByteArrayBuffer(BLOCKSIZE);
+        HashTreeVerifier verifier = HashTreeVerifier.borrow();
+        BufferPool pool = BufferPool.getInstance();
+        byte[] encryptedBlockBuffer = pool.borrow(BLOCKSIZE);
+        byte[] decryptedBlockBuffer = pool.borrow(BLOCKSIZE);
+        byte[] overflowBuffer = pool.borrow(BLOCKSIZE);
+        ByteArrayBuffer overflow = new ByteArrayBuffer(overflowBuffer);
         long wrote = 0;
         int inBlockBuffer = 0;
 
@@ -181,19 +212,14 @@ public class NUSDecryption extends AESDecryption {
                     throw new IOException("wasn't able to read  " + BLOCKSIZE);
                 }
 
-                byte[] output;
-                try {
-                    output = decryptFileChunkHash(encryptedBlockBuffer, (int) block, h3Hash);
-                } catch (CheckSumWrongException | NoSuchAlgorithmException e) {
-                    throw e;
-                }
+                decryptFileChunkHash(encryptedBlockBuffer, decryptedBlockBuffer, (int) block, h3Hash, verifier);
 
                 if ((wrote + writeSize) > filesize) {
                     writeSize = (int) (filesize - wrote);
                 }
 
                 try {
-                    outputStream.write(output, (int) (0 + soffset), (int) writeSize);
+                    outputStream.write(decryptedBlockBuffer, (int) (HashTreeVerifier.HASH_SIZE + soffset), (int) writeSize);
                 } catch (IOException e) {
                     if (e.getMessage().equals("Pipe closed")) {
                         break;
@@ -213,30 +239,57 @@ public class NUSDecryption extends AESDecryption {
             log.finest("Decryption okay");
         } finally {
             StreamUtils.closeAll(inputStream, outputStream);
+            pool.release(encryptedBlockBuffer);
+            pool.release(decryptedBlockBuffer);
+            pool.release(overflowBuffer);
+            HashTreeVerifier.release(verifier);
         }
     }
 
-    private byte[] decryptFileChunkHash(byte[] blockBuffer, int block, byte[] h3_hashes) throws CheckSumWrongException, NoSuchAlgorithmException {
-        int hashSize = 0x400;
-        int blocksize = 0xFC00;
+    private void decryptFileChunkHash(byte[] blockBuffer, byte[] decryptedBlockBuffer, int block, byte[] h3_hashes, HashTreeVerifier verifier)
+            throws CheckSumWrongException {
+        int hashSize = HashTreeVerifier.HASH_SIZE;
+        int blocksize = HashTreeVerifier.DATA_SIZE;
 
-        byte[] hashes = decryptFileChunk(blockBuffer, hashSize, new byte[16]);
+        decrypt(blockBuffer, 0, hashSize, decryptedBlockBuffer, 0, ZERO_IV, 0);
 
         int H0_start = (block % 16) * 20;
 
-        byte[] IV = Arrays.copyOfRange(hashes, H0_start, H0_start + 16);
-        byte[] output = decryptFileChunk(blockBuffer, hashSize, blocksize, IV);
+        decrypt(blockBuffer, hashSize, blocksize, decryptedBlockBuffer, hashSize, decryptedBlockBuffer, H0_start);
+
+        verifier.verifyBlocks(decryptedBlockBuffer, 0, block, 1, h3_hashes);
+    }
 
-        HashUtil.checkFileChunkHashes(hashes, h3_hashes, output, block);
+    /**
+     * Decrypts and verifies a single 0x10000 block of a hashed content. The hash header is decrypted into <code>hashes</code>, the 0xFC00 bytes of data
+     * into <code>out</code>.
+     */
+    public void decryptHashedBlock(byte[] in, int inOffset, byte[] hashes, byte[] out, int outOffset, long block, byte[] h3Hash)
+            throws CheckSumWrongException, NoSuchAlgorithmException {
+        int hashSize = HashTreeVerifier.HASH_SIZE;
+        int blocksize = HashTreeVerifier.DATA_SIZE;
 
-        return output;
+        decrypt(in, inOffset, hashSize, hashes, 0, ZERO_IV, 0);
+        decrypt(in, inOffset + hashSize, blocksize, out, outOffset, hashes, (int) (block % 16) * 20);
+
+        HashTreeVerifier verifier = HashTreeVerifier.borrow();
+        try {
+            verifier.verify(hashes, 0, h3Hash, out, outOffset, blocksize, (int) block);
+        } finally {
+            HashTreeVerifier.release(verifier);
+        }
     }
 
     public boolean decryptStreamsHashed(InputStream inputStream, OutputStream outputStream, long offset, long size, Optional<byte[]> h3HashHashed)
             throws IOException, CheckSumWrongException, NoSuchAlgorithmException {
+        return decryptStreamsHashed(inputStream, outputStream, offset, size, h3HashHashed, ExecutionContext.getDefault());
+    }
+
+    public boolean decryptStreamsHashed(InputStream inputStream, OutputStream outputStream, long offset, long size, Optional<byte[]> h3HashHashed,
+            ExecutionContext context) throws IOException, CheckSumWrongException, NoSuchAlgorithmException {
         try {
             byte[] h3 = h3HashHashed.orElseThrow(() -> new FileNotFoundException("h3 hash not found."));
-            decryptFileStreamHashed(inputStream, outputStream, offset, size, h3);
+            decryptFileStreamHashed(inputStream, outputStream, offset, size, h3, context);
         } finally {
             StreamUtils.closeAll(inputStream, outputStream);
         }
@@ -246,13 +299,18 @@ public class NUSDecryption extends AESDecryption {
 
     public boolean decryptStreamsNonHashed(InputStream inputStream, OutputStream outputStream, long offset, long size, Content content, byte[] IV,
             boolean partial) throws IOException, CheckSumWrongException {
+        return decryptStreamsNonHashed(inputStream, outputStream, offset, size, content, IV, partial, ExecutionContext.getDefault());
+    }
+
+    public boolean decryptStreamsNonHashed(InputStream inputStream, OutputStream outputStream, long offset, long size, Content content, byte[] IV,
+            boolean partial, ExecutionContext context) throws IOException, CheckSumWrongException {
         try {
             byte[] h3Hash = content.getSHA2Hash();
             // Ignore the h3hash if we don't read the whole file.
             if (partial) {
                 h3Hash = null;
             }
-            decryptFileStream(inputStream, outputStream, offset, size, IV, h3Hash, content.getEncryptedFileSize());
+            decryptFileStream(inputStream, outputStream, offset, size, IV, h3Hash, content.getEncryptedFileSize(), context);
         } finally {
             StreamUtils.closeAll(inputStream, outputStream);
         }
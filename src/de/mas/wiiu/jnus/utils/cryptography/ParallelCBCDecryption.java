@@ -0,0 +1,155 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils.cryptography;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import de.mas.wiiu.jnus.ExecutionContext;
+import de.mas.wiiu.jnus.utils.CheckSumWrongException;
+import de.mas.wiiu.jnus.utils.StreamPipeline;
+import de.mas.wiiu.jnus.utils.StreamPipeline.Chunk;
+import de.mas.wiiu.jnus.utils.StreamUtils;
+import de.mas.wiiu.jnus.utils.Utils;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Decrypts non-hashed contents on multiple threads. In CBC mode the IV of every 16 byte block is the preceding encrypted block, so the input can be split
+ * into segments that are decrypted independently. The input is read by a {@link StreamPipeline}, its segments are decrypted by the workers and the
+ * decrypted data is written and hashed in order.
+ */
+@Log
+public class ParallelCBCDecryption {
+    public static final int DEFAULT_SEGMENT_SIZE = 0x40000;
+
+    private static final int BLOCK_SIZE = AESDecryption.AES_BLOCK_SIZE;
+
+    private final byte[] key;
+    private final ExecutionContext context;
+    @Getter private final int segmentSize;
+    @Getter private final int queueDepth;
+
+    public ParallelCBCDecryption(byte[] key, ExecutionContext context) {
+        // Two segments per worker, this way the next segment is already read while the workers are busy.
+        this(key, context, 2 * context.getCpuParallelism(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param queueDepth
+     *            maximum number of segments in flight between reading and writing, this also limits how many segments are decrypted at the same time
+     * @param segmentSize
+     *            size of the segment decrypted by one task, needs to be a multiple of 16
+     */
+    public ParallelCBCDecryption(byte[] key, ExecutionContext context, int queueDepth, int segmentSize) {
+        if (segmentSize <= 0 || segmentSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("The segment size needs to be a multiple of 16");
+        }
+        this.key = key;
+        this.context = context;
+        this.segmentSize = segmentSize;
+        this.queueDepth = Math.max(1, queueDepth);
+    }
+
+    /**
+     * Same contract as {@link NUSDecryption#decryptFileStream(InputStream, OutputStream, long, long, byte[], byte[], long)}. Both streams will be closed.
+     */
+    public void decryptFileStream(InputStream inputStream, OutputStream outputStream, long filesize, byte[] IV, byte[] h3hash, long expectedSizeForHash)
+            throws IOException, CheckSumWrongException {
+        HashState state = new HashState();
+
+        if (h3hash != null) {
+            try {
+                state.sha1 = MessageDigest.getInstance("SHA1");
+                state.sha1fallback = MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // We can only decrypt multiples of 16. So we need to align it.
+        long toRead = Utils.align(filesize, 16);
+        if (state.sha1 != null) {
+            // In some cases it's using the hash of the whole .app file instead of the part that's been actually used.
+            toRead = Math.max(toRead, Utils.align(expectedSizeForHash, 16));
+        }
+
+        StreamPipeline pipeline = new StreamPipeline(context, queueDepth, segmentSize);
+        try {
+            pipeline.run(inputStream, toRead, chunk -> decryptChunk(chunk, IV), chunk -> writeChunk(outputStream, chunk, filesize, expectedSizeForHash, state));
+
+            if (state.sha1 != null && state.sha1fallback != null) {
+                long missingInHash = expectedSizeForHash - state.writtenFallback;
+                if (missingInHash > 0) {
+                    state.sha1fallback.update(new byte[(int) missingInHash]);
+                }
+
+                byte[] calculated_hash1 = state.sha1.digest();
+                byte[] calculated_hash2 = state.sha1fallback.digest();
+                byte[] expected_hash = h3hash;
+                if (!Arrays.equals(calculated_hash1, expected_hash) && !Arrays.equals(calculated_hash2, expected_hash)) {
+                    throw new CheckSumWrongException("hash checksum failed ", calculated_hash1, expected_hash);
+                } else {
+                    log.finest("Hash DOES match saves output stream.");
+                }
+            }
+        } finally {
+            StreamUtils.closeAll(inputStream, outputStream);
+        }
+        if (state.written < filesize) {
+            throw new IOException("Failed to read. Missing " + (filesize - state.written));
+        }
+    }
+
+    private void decryptChunk(Chunk chunk, byte[] IV) {
+        // The pipeline keeps the last encrypted block of the previous chunk, so the chunk can be decrypted in place.
+        byte[] chunkIV = chunk.getIndex() == 0 ? IV : chunk.getPreviousBlock();
+        int length = (int) Utils.align(chunk.getLength(), BLOCK_SIZE);
+        NUSDecryption decryption = DecryptionContextCache.borrow(key, chunkIV);
+        try {
+            decryption.decrypt(chunk.getData(), 0, length, chunk.getData(), 0, chunkIV, 0);
+        } finally {
+            DecryptionContextCache.release(decryption);
+        }
+    }
+
+    private static boolean writeChunk(OutputStream outputStream, Chunk chunk, long filesize, long expectedSizeForHash, HashState state) throws IOException {
+        int toWrite = (int) Math.max(0, Math.min(chunk.getLength(), filesize - state.written));
+        outputStream.write(chunk.getData(), 0, toWrite);
+        state.written += toWrite;
+
+        if (state.sha1 != null && state.sha1fallback != null) {
+            state.sha1.update(chunk.getData(), 0, toWrite);
+
+            int toFallback = (int) Math.max(0, Math.min(chunk.getLength(), expectedSizeForHash - state.writtenFallback));
+            state.sha1fallback.update(chunk.getData(), 0, toFallback);
+            state.writtenFallback += toFallback;
+        }
+        return true;
+    }
+
+    private static class HashState {
+        private MessageDigest sha1;
+        private MessageDigest sha1fallback;
+        private long written;
+        private long writtenFallback;
+    }
+}
@@ -0,0 +1,141 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils.cryptography;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+
+import de.mas.wiiu.jnus.ExecutionContext;
+import de.mas.wiiu.jnus.utils.CheckSumWrongException;
+import de.mas.wiiu.jnus.utils.HashTreeVerifier;
+import de.mas.wiiu.jnus.utils.StreamPipeline;
+import de.mas.wiiu.jnus.utils.StreamPipeline.Chunk;
+import de.mas.wiiu.jnus.utils.StreamUtils;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Decrypts and verifies hashed contents on multiple threads. Every 0x10000 block of a hashed content carries its own IV in the H0 table of its hash header,
+ * so ranges of blocks can be decrypted independently. The input is read by a {@link StreamPipeline}, its chunks are decrypted and verified by the workers
+ * and the decrypted data is written in order.
+ */
+@Log
+public class ParallelHashedDecryption {
+    public static final int DEFAULT_BLOCKS_PER_TASK = 4;
+
+    private static final int BLOCKSIZE = HashTreeVerifier.BLOCK_SIZE;
+    private static final int HASHBLOCKSIZE = HashTreeVerifier.DATA_SIZE;
+    private static final int HASHSIZE = HashTreeVerifier.HASH_SIZE;
+    private static final byte[] ZERO_IV = new byte[AESDecryption.AES_BLOCK_SIZE];
+
+    private final byte[] key;
+    private final ExecutionContext context;
+    @Getter private final int blocksPerTask;
+    @Getter private final int queueDepth;
+
+    public ParallelHashedDecryption(byte[] key, ExecutionContext context) {
+        // Two chunks per worker, this way the next chunk is already read while the workers are busy.
+        this(key, context, 2 * context.getCpuParallelism(), DEFAULT_BLOCKS_PER_TASK);
+    }
+
+    /**
+     * @param queueDepth
+     *            maximum number of tasks in flight between reading and writing, this also limits how many tasks run at the same time
+     * @param blocksPerTask
+     *            number of 0x10000 blocks decrypted by one task
+     */
+    public ParallelHashedDecryption(byte[] key, ExecutionContext context, int queueDepth, int blocksPerTask) {
+        this.key = key;
+        this.context = context;
+        this.blocksPerTask = Math.max(1, blocksPerTask);
+        this.queueDepth = Math.max(1, queueDepth);
+    }
+
+    /**
+     * Same contract as {@link NUSDecryption#decryptFileStreamHashed(InputStream, OutputStream, long, long, byte[])}. The input stream has to start at the
+     * hashed block containing <code>fileoffset</code>. Both streams will be closed.
+     */
+    public void decryptFileStreamHashed(InputStream inputStream, OutputStream outputStream, long fileoffset, long filesize, byte[] h3Hash)
+            throws IOException, CheckSumWrongException, NoSuchAlgorithmException {
+        long firstBlock = fileoffset / HASHBLOCKSIZE;
+        long soffset = fileoffset - (firstBlock * HASHBLOCKSIZE);
+        long blockCount = (soffset + filesize + HASHBLOCKSIZE - 1) / HASHBLOCKSIZE;
+
+        StreamPipeline pipeline = new StreamPipeline(context, queueDepth, blocksPerTask * BLOCKSIZE);
+        try {
+            pipeline.run(inputStream, blockCount * BLOCKSIZE, chunk -> decryptChunk(chunk, firstBlock, h3Hash),
+                    chunk -> writeChunk(outputStream, chunk, firstBlock, fileoffset, filesize));
+            log.finest("Decryption okay");
+        } finally {
+            StreamUtils.closeAll(inputStream, outputStream);
+        }
+    }
+
+    private void decryptChunk(Chunk chunk, long firstBlock, byte[] h3Hash) throws IOException, CheckSumWrongException, NoSuchAlgorithmException {
+        // The stream ended too early.
+        if (chunk.getLength() == 0 || chunk.getLength() % BLOCKSIZE != 0) {
+            throw new IOException("wasn't able to read  " + BLOCKSIZE);
+        }
+        byte[] data = chunk.getData();
+        long chunkBlock = firstBlock + chunk.getPosition() / BLOCKSIZE;
+        int blockCount = chunk.getLength() / BLOCKSIZE;
+
+        // Decrypted in place, the hash header of a block is needed before its data can be decrypted.
+        NUSDecryption aes = DecryptionContextCache.borrow(key, ZERO_IV);
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                int offset = i * BLOCKSIZE;
+                int H0_start = offset + (int) ((chunkBlock + i) % 16) * 20;
+
+                aes.decrypt(data, offset, HASHSIZE, data, offset, ZERO_IV, 0);
+                aes.decrypt(data, offset + HASHSIZE, HASHBLOCKSIZE, data, offset + HASHSIZE, data, H0_start);
+            }
+        } finally {
+            DecryptionContextCache.release(aes);
+        }
+        HashTreeVerifier verifier = HashTreeVerifier.borrow();
+        try {
+            verifier.verifyBlocks(data, 0, chunkBlock, blockCount, h3Hash);
+        } finally {
+            HashTreeVerifier.release(verifier);
+        }
+    }
+
+    private static boolean writeChunk(OutputStream outputStream, Chunk chunk, long firstBlock, long fileoffset, long filesize) throws IOException {
+        long end = fileoffset + filesize;
+        long chunkBlock = firstBlock + chunk.getPosition() / BLOCKSIZE;
+        for (int i = 0; i < chunk.getLength() / BLOCKSIZE; i++) {
+            long blockStart = (chunkBlock + i) * HASHBLOCKSIZE;
+            long from = Math.max(fileoffset, blockStart);
+            long to = Math.min(end, blockStart + HASHBLOCKSIZE);
+            if (to <= from) {
+                continue;
+            }
+            try {
+                outputStream.write(chunk.getData(), i * BLOCKSIZE + HASHSIZE + (int) (from - blockStart), (int) (to - from));
+            } catch (IOException e) {
+                if ("Pipe closed".equals(e.getMessage())) {
+                    return false;
+                }
+                throw e;
+            }
+        }
+        return true;
+    }
+}
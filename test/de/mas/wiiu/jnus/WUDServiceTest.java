@@ -0,0 +1,338 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.mas.wiiu.jnus.implementations.wud.WUDImage;
+import de.mas.wiiu.jnus.implementations.wud.WUDImageCompressedInfo;
+import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReader;
+import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReaderCompressed;
+import de.mas.wiiu.jnus.implementations.wud.reader.WUDDiscReaderSplitted;
+import de.mas.wiiu.jnus.utils.ByteArrayWrapper;
+
+public class WUDServiceTest {
+    private static final int SECTOR_SIZE = 0x8000;
+    private static final int SECTOR_COUNT = 256;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private long originalFileSize;
+    private long originalPartSize;
+    private ExecutorService cpuExecutor;
+    private ExecutionContext parallel;
+    private byte[] image;
+    private File wud;
+
+    @Before
+    public void setUp() throws IOException {
+        originalFileSize = WUDImage.WUD_FILESIZE;
+        originalPartSize = WUDDiscReaderSplitted.WUD_SPLITTED_FILE_SIZE;
+        cpuExecutor = Executors.newFixedThreadPool(4);
+        parallel = new ExecutionContext(ExecutionContext.getDefault().getIoExecutor(), 4, cpuExecutor, 4);
+
+        // Empty, repeated, compressible and random sectors.
+        Random random = new Random(1);
+        byte[][] repeated = new byte[8][SECTOR_SIZE];
+        for (byte[] sector : repeated) {
+            random.nextBytes(sector);
+        }
+        image = new byte[SECTOR_COUNT * SECTOR_SIZE];
+        for (int i = 0; i < SECTOR_COUNT; i++) {
+            int offset = i * SECTOR_SIZE;
+            switch (random.nextInt(4)) {
+            case 0:
+                break;
+            case 1:
+                System.arraycopy(repeated[random.nextInt(repeated.length)], 0, image, offset, SECTOR_SIZE);
+                break;
+            case 2:
+                for (int j = 0; j < SECTOR_SIZE; j++) {
+                    image[offset + j] = (byte) ((i + j / 64) % 7);
+                }
+                break;
+            default:
+                byte[] sector = new byte[SECTOR_SIZE];
+                random.nextBytes(sector);
+                System.arraycopy(sector, 0, image, offset, SECTOR_SIZE);
+            }
+        }
+        wud = folder.newFile("game.wud");
+        Files.write(wud.toPath(), image);
+        WUDImage.WUD_FILESIZE = image.length;
+    }
+
+    @After
+    public void tearDown() {
+        WUDImage.WUD_FILESIZE = originalFileSize;
+        WUDDiscReaderSplitted.WUD_SPLITTED_FILE_SIZE = originalPartSize;
+        cpuExecutor.shutdown();
+    }
+
+    private File compress(String filename, WUXCompressionConfig config) throws IOException {
+        return WUDService.compressWUDToWUX(new WUDImage(wud), folder.getRoot().getPath(), filename, true, config).get();
+    }
+
+    private WUXCompressionConfig config(ExecutionContext context) {
+        WUXCompressionConfig config = new WUXCompressionConfig();
+        config.setExecutionContext(context);
+        return config;
+    }
+
+    private WUXCompressionConfig checkpointConfig() {
+        WUXCompressionConfig config = config(parallel);
+        config.setCheckpointInterval(0x100000);
+        return config;
+    }
+
+    /**
+     * Compresses with checkpoints, but the processing fails after <code>tasks</code> batches of sectors, like a crash in the middle of the compression.
+     */
+    private void compressInterrupted(String filename, int tasks) throws IOException {
+        AtomicInteger started = new AtomicInteger();
+        Executor failing = task -> {
+            if (started.incrementAndGet() > tasks) {
+                throw new RejectedExecutionException("Simulated crash");
+            }
+            cpuExecutor.execute(task);
+        };
+        WUXCompressionConfig config = checkpointConfig();
+        config.setExecutionContext(new ExecutionContext(ExecutionContext.getDefault().getIoExecutor(), 4, failing, 4));
+        try {
+            WUDService.compressWUDToWUX(new WUDImage(wud), folder.getRoot().getPath(), filename, true, config);
+            fail("The interrupted compression didn't fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(new File(folder.getRoot(), filename + ".checkpoint").exists());
+    }
+
+    /**
+     * Reference of the original sequential writer: every sector is hashed in order, the first occurrence of a sector is stored and the sector table maps
+     * each sector to its stored copy.
+     */
+    private static byte[] compressLikeBaseline(byte[] image) throws NoSuchAlgorithmException {
+        int sectorCount = (image.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        int sectorTableEnd = (sectorCount * 0x04 + SECTOR_SIZE - 1) / SECTOR_SIZE * SECTOR_SIZE;
+
+        Map<ByteArrayWrapper, Integer> sectorHashes = new HashMap<>();
+        Map<Integer, Integer> sectorMapping = new TreeMap<>();
+        ByteArrayOutputStream sectors = new ByteArrayOutputStream();
+        int realSector = 0;
+        for (int curSector = 0; curSector < sectorCount; curSector++) {
+            byte[] sector = Arrays.copyOfRange(image, curSector * SECTOR_SIZE, (curSector + 1) * SECTOR_SIZE);
+            ByteArrayWrapper hash = new ByteArrayWrapper(MessageDigest.getInstance("SHA1").digest(sector));
+            Integer oldOffset = sectorHashes.get(hash);
+            if (oldOffset == null) {
+                sectorMapping.put(curSector, realSector);
+                sectorHashes.put(hash, realSector);
+                sectors.write(sector, 0, sector.length);
+                realSector++;
+            } else {
+                sectorMapping.put(curSector, oldOffset);
+            }
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(sectorTableEnd + sectors.size()).order(ByteOrder.LITTLE_ENDIAN);
+        result.putInt(WUDImageCompressedInfo.WUX_MAGIC_0).putInt(WUDImageCompressedInfo.WUX_MAGIC_1).putInt(SECTOR_SIZE).putInt(0).putLong(image.length);
+        result.position(WUDImageCompressedInfo.WUX_HEADER_SIZE);
+        for (int stored : sectorMapping.values()) {
+            result.putInt(stored);
+        }
+        result.position(sectorTableEnd);
+        result.put(sectors.toByteArray());
+        return result.array();
+    }
+
+    private void assertImageContent(File wux) throws IOException {
+        WUDImage compressed = new WUDImage(wux);
+        assertTrue(compressed.isCompressed());
+        WUDDiscReader reader = compressed.getWUDDiscReader();
+        try {
+            Random random = new Random(2);
+            for (int i = 0; i < 200; i++) {
+                int offset = random.nextInt(image.length);
+                int length = 1 + random.nextInt(3 * SECTOR_SIZE);
+                ByteBuffer dst = ByteBuffer.allocate(length);
+                int read = reader.readEncrypted(offset, dst);
+                assertEquals(Math.min(length, image.length - offset), read);
+                assertArrayEquals(Arrays.copyOfRange(image, offset, offset + read), Arrays.copyOf(dst.array(), read));
+            }
+        } finally {
+            reader.close();
+        }
+
+        File decompressed = WUDService.decompressWUX(compressed, folder.getRoot().getPath(), wux.getName() + ".wud", true).get();
+        assertArrayEquals(image, Files.readAllBytes(decompressed.toPath()));
+    }
+
+    @Test
+    public void parallelOutputMatchesSequential() throws IOException, NoSuchAlgorithmException {
+        File sequential = compress("sequential.wux", config(ExecutionContext.sequential()));
+        File parallelOutput = compress("parallel.wux", config(parallel));
+
+        assertArrayEquals(compressLikeBaseline(image), Files.readAllBytes(sequential.toPath()));
+        assertArrayEquals(Files.readAllBytes(sequential.toPath()), Files.readAllBytes(parallelOutput.toPath()));
+        assertTrue(sequential.length() < image.length);
+        assertImageContent(parallelOutput);
+    }
+
+    @Test
+    public void resumedOutputMatchesUninterrupted() throws IOException {
+        File uninterrupted = compress("uninterrupted.wux", config(parallel));
+
+        compressInterrupted("resumed.wux", 5);
+        File resumed = WUDService.compressWUDToWUX(new WUDImage(wud), folder.getRoot().getPath(), "resumed.wux", false, checkpointConfig()).get();
+
+        assertFalse(new File(folder.getRoot(), "resumed.wux.checkpoint").exists());
+        assertArrayEquals(Files.readAllBytes(uninterrupted.toPath()), Files.readAllBytes(resumed.toPath()));
+    }
+
+    @Test
+    public void checkpointOfAnotherSourceIsRejected() throws IOException {
+        File uninterrupted = compress("uninterrupted.wux", config(parallel));
+        String root = folder.getRoot().getPath();
+
+        // Same content and modification time, but another path.
+        compressInterrupted("moved.wux", 5);
+        File other = new File(folder.getRoot(), "other.wud");
+        Files.copy(wud.toPath(), other.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+        assertEquals(wud.lastModified(), other.lastModified());
+        File moved = new File(folder.getRoot(), "moved.wux");
+        byte[] partial = Files.readAllBytes(moved.toPath());
+        assertFalse(WUDService.compressWUDToWUX(new WUDImage(other), root, "moved.wux", false, checkpointConfig()).isPresent());
+        assertArrayEquals(partial, Files.readAllBytes(moved.toPath()));
+
+        // Same path, but modified.
+        compressInterrupted("modified.wux", 5);
+        assertTrue(wud.setLastModified(wud.lastModified() + 10000));
+        File modified = new File(folder.getRoot(), "modified.wux");
+        partial = Files.readAllBytes(modified.toPath());
+        assertFalse(WUDService.compressWUDToWUX(new WUDImage(wud), root, "modified.wux", false, checkpointConfig()).isPresent());
+        assertArrayEquals(partial, Files.readAllBytes(modified.toPath()));
+
+        // With overwrite the compression starts over.
+        File restarted = WUDService.compressWUDToWUX(new WUDImage(wud), root, "modified.wux", true, checkpointConfig()).get();
+        assertFalse(new File(folder.getRoot(), "modified.wux.checkpoint").exists());
+        assertArrayEquals(Files.readAllBytes(uninterrupted.toPath()), Files.readAllBytes(restarted.toPath()));
+    }
+
+    @Test
+    public void splitOutputCanBeRead() throws IOException {
+        int partSize = 0x300000;
+        // Zero sectors at the end of a part and of the image aren't written, the parts have to be complete anyway.
+        Arrays.fill(image, partSize - 2 * SECTOR_SIZE, partSize, (byte) 0);
+        Arrays.fill(image, image.length - SECTOR_SIZE, image.length, (byte) 0);
+        Files.write(wud.toPath(), image);
+        File wux = compress("split.wux", config(parallel));
+
+        WUDDiscReaderSplitted.WUD_SPLITTED_FILE_SIZE = partSize;
+        File output = folder.newFolder("split");
+        File part1 = WUDService.decompressWUX(new WUDImage(wux), output.getPath(), "game.wud", false, parallel, true).get();
+        assertEquals(String.format(WUDDiscReaderSplitted.WUD_SPLITTED_DEFAULT_FILEPATTERN, 1), part1.getName());
+
+        int partCount = (image.length + partSize - 1) / partSize;
+        assertEquals(partCount, output.listFiles().length);
+        for (int i = 0; i < partCount; i++) {
+            File part = new File(output, String.format(WUDDiscReaderSplitted.WUD_SPLITTED_DEFAULT_FILEPATTERN, i + 1));
+            byte[] expected = Arrays.copyOfRange(image, i * partSize, Math.min(image.length, (i + 1) * partSize));
+            assertArrayEquals(expected, Files.readAllBytes(part.toPath()));
+        }
+
+        WUDImage split = new WUDImage(part1);
+        assertTrue(split.isSplitted());
+        WUDDiscReader reader = split.getWUDDiscReader();
+        try {
+            ByteBuffer dst = ByteBuffer.allocate(image.length);
+            assertEquals(image.length, reader.readEncrypted(0, dst));
+            assertArrayEquals(image, dst.array());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void deflatedImagesCanBeRead() throws IOException {
+        File plain = compress("plain.wux", config(parallel));
+        for (int sectorSize : new int[] { 0x4000, SECTOR_SIZE, 0x10000 }) {
+            WUXCompressionConfig config = config(parallel);
+            config.setSectorSize(sectorSize);
+            config.setDeflate(true);
+            File deflated = compress("deflated" + sectorSize + ".wux", config);
+
+            WUDImage compressed = new WUDImage(deflated);
+            WUDImageCompressedInfo info = compressed.getCompressedInfo();
+            assertTrue(compressed.getWUDDiscReader() instanceof WUDDiscReaderCompressed);
+            assertTrue(info.isDeflated());
+            assertEquals(sectorSize, info.getSectorSize());
+            if (sectorSize == SECTOR_SIZE) {
+                assertTrue(deflated.length() < plain.length());
+            }
+            assertImageContent(deflated);
+        }
+    }
+
+    @Test
+    public void otherSectorSizesCanBeRead() throws IOException {
+        for (int sectorSize : new int[] { 0x1000, 0x20000 }) {
+            WUXCompressionConfig config = config(parallel);
+            config.setSectorSize(sectorSize);
+            File wux = compress("plain" + sectorSize + ".wux", config);
+            assertEquals(sectorSize, new WUDImage(wux).getCompressedInfo().getSectorSize());
+            assertImageContent(wux);
+        }
+    }
+
+    @Test
+    public void invalidSectorSizeIsRejected() throws IOException {
+        for (int sectorSize : new int[] { 0x3000, 0x800 }) {
+            WUXCompressionConfig config = config(parallel);
+            config.setSectorSize(sectorSize);
+            assertFalse(WUDService.compressWUDToWUX(new WUDImage(wud), folder.getRoot().getPath(), "invalid.wux", true, config).isPresent());
+        }
+    }
+}
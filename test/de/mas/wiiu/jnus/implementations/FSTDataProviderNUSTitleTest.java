@@ -0,0 +1,170 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.implementations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mas.wiiu.jnus.ExecutionContext;
+import de.mas.wiiu.jnus.NUSTitle;
+import de.mas.wiiu.jnus.entities.Ticket;
+import de.mas.wiiu.jnus.entities.content.Content;
+import de.mas.wiiu.jnus.entities.fst.FSTEntry;
+import de.mas.wiiu.jnus.interfaces.NUSDataProvider;
+
+public class FSTDataProviderNUSTitleTest {
+    private static final long TITLE_ID = 0x0005000010101000L;
+    private static final int CONTENT_SIZE = 0x3000;
+
+    private byte[] decrypted;
+    private FSTDataProviderNUSTitle provider;
+    private FSTEntry entry;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(1);
+        decrypted = new byte[CONTENT_SIZE];
+        random.nextBytes(decrypted);
+        byte[] commonKey = new byte[0x10];
+        byte[] encryptedKey = new byte[0x10];
+        random.nextBytes(commonKey);
+        random.nextBytes(encryptedKey);
+        Ticket ticket = Ticket.createTicket(encryptedKey, TITLE_ID, commonKey);
+
+        // Non-hashed contents are encrypted as a whole, the IV is the content index.
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(ticket.getDecryptedKey(), "AES"), new IvParameterSpec(new byte[0x10]));
+        byte[] encrypted = cipher.doFinal(decrypted);
+
+        NUSTitle title = new NUSTitle(new MemoryDataProvider(createTMD(), encrypted));
+        title.setTicket(Optional.of(ticket));
+        provider = new FSTDataProviderNUSTitle(title);
+        entry = provider.getRoot().getChildren().get(0);
+    }
+
+    private static byte[] createTMD() {
+        ByteBuffer tmd = ByteBuffer.allocate(0xB04 + Content.CONTENT_SIZE);
+        tmd.putLong(0x18C, TITLE_ID);
+        tmd.putShort(0x1DE, (short) 1);
+        tmd.putInt(0xB04, 0x10);
+        tmd.putShort(0xB04 + 0x06, Content.CONTENT_ENCRYPTED);
+        tmd.putLong(0xB04 + 0x08, CONTENT_SIZE);
+        return tmd.array();
+    }
+
+    @Test
+    public void nonHashedReadWithOffsetAndUnalignedSize() throws IOException {
+        assertRead(0x20, 0x1005);
+        assertRead(0x1000, 0x1FF1);
+        assertRead(0x10, CONTENT_SIZE - 0x10 - 0x0F);
+    }
+
+    @Test
+    public void nonHashedPipelineReadWithOffsetAndUnalignedSize() throws IOException {
+        provider.setPipelineQueueDepth(4);
+        provider.setExecutionContext(new ExecutionContext(ExecutionContext.getDefault().getIoExecutor(), 4, Executors.newFixedThreadPool(4), 4));
+        assertRead(0x20, 0x1005);
+        assertRead(0x1000, 0x1FF1);
+        assertRead(0x10, CONTENT_SIZE - 0x10 - 0x0F);
+    }
+
+    @Test
+    public void unalignedReadReportsEndOfFile() throws IOException {
+        // Unaligned offsets are read through a channel.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(provider.readFileToStream(out, entry, 0x21, 0x1000));
+        assertArrayEquals(Arrays.copyOfRange(decrypted, 0x21, 0x1021), out.toByteArray());
+
+        out = new ByteArrayOutputStream();
+        assertFalse(provider.readFileToStream(out, entry, CONTENT_SIZE - 0x11, 0x20));
+        assertArrayEquals(Arrays.copyOfRange(decrypted, CONTENT_SIZE - 0x11, CONTENT_SIZE), out.toByteArray());
+    }
+
+    private void assertRead(long offset, int size) throws IOException {
+        byte[] expected = Arrays.copyOfRange(decrypted, (int) offset, (int) offset + size);
+        assertArrayEquals(expected, provider.readFile(entry, offset, size));
+    }
+
+    private static class MemoryDataProvider implements NUSDataProvider {
+        private final byte[] tmd;
+        private final byte[] content;
+
+        MemoryDataProvider(byte[] tmd, byte[] content) {
+            this.tmd = tmd;
+            this.content = content;
+        }
+
+        @Override
+        public int read(Content c, long position, ByteBuffer dst) throws IOException {
+            int length = (int) Math.max(0, Math.min(dst.remaining(), content.length - position));
+            dst.put(content, (int) position, length);
+            return length;
+        }
+
+        @Override
+        public boolean isPositionalReadSupported() {
+            return true;
+        }
+
+        @Override
+        public InputStream readContentAsStream(Content c, long offset, long size) throws IOException {
+            return new ByteArrayInputStream(content, (int) offset, (int) size);
+        }
+
+        @Override
+        public Optional<byte[]> getContentH3Hash(Content c) throws IOException {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<byte[]> getRawTMD() throws IOException {
+            return Optional.of(tmd);
+        }
+
+        @Override
+        public Optional<byte[]> getRawTicket() throws IOException {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<byte[]> getRawCert() throws IOException {
+            return Optional.empty();
+        }
+
+        @Override
+        public void cleanup() throws IOException {
+        }
+    }
+}
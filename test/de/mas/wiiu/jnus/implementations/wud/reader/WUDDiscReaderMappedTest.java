@@ -0,0 +1,69 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.implementations.wud.reader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.mas.wiiu.jnus.implementations.wud.WUDImage;
+
+public class WUDDiscReaderMappedTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void streamEndsAtImageEnd() throws IOException {
+        byte[] image = new byte[0x12345];
+        new Random(1).nextBytes(image);
+        File file = folder.newFile("game.wud");
+        Files.write(file.toPath(), image);
+
+        WUDDiscReader mapped = new WUDImage(file, true).getWUDDiscReader();
+        WUDDiscReader uncompressed = new WUDImage(file, false).getWUDDiscReader();
+        assertTrue(mapped instanceof WUDDiscReaderMapped);
+
+        // Like the stream of the uncompressed reader, it is not limited to the requested size.
+        byte[] expected = Arrays.copyOfRange(image, 0x1001, image.length);
+        assertArrayEquals(expected, readAll(mapped.readEncryptedToStream(0x1001, 0x10)));
+        assertArrayEquals(expected, readAll(uncompressed.readEncryptedToStream(0x1001, 0x10)));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[0x1000];
+        int read;
+        try {
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
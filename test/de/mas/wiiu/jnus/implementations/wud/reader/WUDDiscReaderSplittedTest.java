@@ -0,0 +1,123 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.implementations.wud.reader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.mas.wiiu.jnus.implementations.wud.WUDImage;
+
+public class WUDDiscReaderSplittedTest {
+    private static final int PART_SIZE = 0x10000;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private long originalFileSize;
+    private long originalPartSize;
+    private byte[] image;
+
+    @Before
+    public void setUp() throws IOException {
+        originalFileSize = WUDImage.WUD_FILESIZE;
+        originalPartSize = WUDDiscReaderSplitted.WUD_SPLITTED_FILE_SIZE;
+        WUDDiscReaderSplitted.WUD_SPLITTED_FILE_SIZE = PART_SIZE;
+
+        image = new byte[PART_SIZE * 3 + 0x1234];
+        new Random(1).nextBytes(image);
+        WUDImage.WUD_FILESIZE = image.length;
+        for (int i = 0; i * PART_SIZE < image.length; i++) {
+            Files.write(part(i + 1).toPath(), Arrays.copyOfRange(image, i * PART_SIZE, Math.min(image.length, (i + 1) * PART_SIZE)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        WUDImage.WUD_FILESIZE = originalFileSize;
+        WUDDiscReaderSplitted.WUD_SPLITTED_FILE_SIZE = originalPartSize;
+    }
+
+    private File part(int index) {
+        return new File(folder.getRoot(), String.format(WUDDiscReaderSplitted.WUD_SPLITTED_DEFAULT_FILEPATTERN, index));
+    }
+
+    private WUDDiscReader openReader() throws IOException {
+        WUDImage wud = new WUDImage(part(1));
+        assertTrue(wud.isSplitted());
+        return wud.getWUDDiscReader();
+    }
+
+    @Test
+    public void readsAcrossParts() throws IOException {
+        WUDDiscReader reader = openReader();
+        try {
+            ByteBuffer dst = ByteBuffer.allocate(image.length + 100);
+            assertEquals(image.length, reader.readEncrypted(0, dst));
+            assertArrayEquals(image, Arrays.copyOf(dst.array(), image.length));
+
+            int offset = PART_SIZE - 10;
+            byte[] read = reader.readEncryptedToByteArray(offset, 0, PART_SIZE + 20);
+            assertArrayEquals(Arrays.copyOfRange(image, offset, offset + PART_SIZE + 20), read);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void missingPartFails() throws IOException {
+        Files.delete(part(3).toPath());
+        WUDDiscReader reader = openReader();
+        try {
+            // The existing parts can still be read.
+            assertEquals(PART_SIZE * 2, reader.readEncrypted(0, ByteBuffer.allocate(PART_SIZE * 2)));
+            try {
+                reader.readEncrypted(PART_SIZE * 2 - 10, ByteBuffer.allocate(20));
+                fail("Reading from a missing part didn't fail");
+            } catch (FileNotFoundException e) {
+                // expected
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void partWithWrongSizeFails() throws IOException {
+        Files.write(part(2).toPath(), new byte[PART_SIZE - 1]);
+        WUDDiscReader reader = openReader();
+        try {
+            reader.readEncrypted(0, ByteBuffer.allocate(16));
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FingerprintTableTest {
+    private static final int HASH_LENGTH = 20;
+
+    private static byte[] randomHashes(int count, long seed) {
+        byte[] result = new byte[count * HASH_LENGTH];
+        new Random(seed).nextBytes(result);
+        return result;
+    }
+
+    @Test
+    public void sameFingerprintDifferentHashes() {
+        FingerprintTable table = new FingerprintTable(HASH_LENGTH, 16);
+        // All hashes share the first 8 bytes (the fingerprint) and only differ in the last byte.
+        byte[] hashes = new byte[100 * HASH_LENGTH];
+        for (int i = 0; i < 100; i++) {
+            hashes[i * HASH_LENGTH + HASH_LENGTH - 1] = (byte) i;
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(-1, table.putIfAbsent(hashes, i * HASH_LENGTH));
+        }
+        assertEquals(100, table.getSize());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, table.get(hashes, i * HASH_LENGTH));
+            assertEquals(i, table.putIfAbsent(hashes, i * HASH_LENGTH));
+        }
+
+        byte[] other = new byte[HASH_LENGTH];
+        other[HASH_LENGTH - 1] = (byte) 200;
+        assertEquals(-1, table.get(other, 0));
+        assertEquals(100, table.getSize());
+    }
+
+    @Test
+    public void growsPastExpectedSize() {
+        int count = 50000;
+        byte[] hashes = randomHashes(count, 1);
+        FingerprintTable table = new FingerprintTable(HASH_LENGTH, 1);
+        for (int i = 0; i < count; i++) {
+            assertEquals(-1, table.putIfAbsent(hashes, i * HASH_LENGTH));
+            assertEquals(i + 1, table.getSize());
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, table.get(hashes, i * HASH_LENGTH));
+            assertEquals(i, table.putIfAbsent(hashes, i * HASH_LENGTH));
+        }
+        assertEquals(count, table.getSize());
+        assertEquals(-1, table.get(randomHashes(1, 2), 0));
+    }
+
+    @Test
+    public void writeHashesRestoresIndices() throws IOException {
+        byte[] hashes = randomHashes(3000, 3);
+        FingerprintTable table = new FingerprintTable(HASH_LENGTH, 100);
+        // Add duplicates in between, they must not show up in the written hashes.
+        for (int i = 0; i < 3000; i++) {
+            table.putIfAbsent(hashes, i * HASH_LENGTH);
+            table.putIfAbsent(hashes, (i / 2) * HASH_LENGTH);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        table.writeHashes(out);
+        byte[] written = out.toByteArray();
+        assertArrayEquals(hashes, written);
+
+        FingerprintTable restored = new FingerprintTable(HASH_LENGTH, 100);
+        for (int i = 0; i < written.length / HASH_LENGTH; i++) {
+            assertEquals(-1, restored.putIfAbsent(written, i * HASH_LENGTH));
+        }
+        assertEquals(table.getSize(), restored.getSize());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(table.get(hashes, i * HASH_LENGTH), restored.get(hashes, i * HASH_LENGTH));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortHashes() {
+        new FingerprintTable(4, 16);
+    }
+}
@@ -0,0 +1,59 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils.cryptography;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+import org.junit.Test;
+
+import de.mas.wiiu.jnus.entities.content.Content;
+
+public class DecryptedBlockCacheTest {
+    private static final long TITLE_ID = 0x0005000010101000L;
+
+    private static Content content(int ID, int index, byte hash) throws ParseException {
+        ByteBuffer data = ByteBuffer.allocate(Content.CONTENT_SIZE);
+        data.putInt(0x00, ID);
+        data.putShort(0x04, (short) index);
+        data.putShort(0x06, (short) (Content.CONTENT_ENCRYPTED | Content.CONTENT_HASHED));
+        data.putLong(0x08, 0x10000);
+        data.put(0x10, hash);
+        return Content.parseContent(data.array());
+    }
+
+    @Test
+    public void versionsOfATitleDontShareBlocks() throws ParseException {
+        DecryptedBlockCache cache = new DecryptedBlockCache(0x10000);
+        Content version1 = content(0x10, 1, (byte) 1);
+        Content version2 = content(0x10, 1, (byte) 2);
+        Content otherID = content(0x11, 1, (byte) 1);
+
+        byte[] block = new byte[0x100];
+        block[0] = 0x42;
+        cache.put(TITLE_ID, version1, 0, block, 0, block.length);
+
+        byte[] buffer = new byte[0x100];
+        assertEquals(-1, cache.get(TITLE_ID, version2, 0, buffer, 0));
+        assertEquals(-1, cache.get(TITLE_ID, otherID, 0, buffer, 0));
+        assertEquals(block.length, cache.get(TITLE_ID, content(0x10, 1, (byte) 1), 0, buffer, 0));
+        assertArrayEquals(block, buffer);
+    }
+}
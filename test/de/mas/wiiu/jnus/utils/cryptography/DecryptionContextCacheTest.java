@@ -0,0 +1,59 @@
+/****************************************************************************
+ * Copyright (C) 2016-2019 Maschell
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ****************************************************************************/
+package de.mas.wiiu.jnus.utils.cryptography;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DecryptionContextCacheTest {
+    private static final byte[] KEY1 = new byte[0x10];
+    private static final byte[] KEY2 = new byte[0x10];
+    private static final byte[] IV1 = new byte[0x10];
+    private static final byte[] IV2 = new byte[0x10];
+
+    static {
+        KEY2[0] = 1;
+        IV2[0] = 1;
+    }
+
+    @After
+    public void tearDown() {
+        DecryptionContextCache.clear();
+    }
+
+    @Test
+    public void releasedContextsAreReused() {
+        NUSDecryption first = DecryptionContextCache.borrow(KEY1, IV1);
+        NUSDecryption second = DecryptionContextCache.borrow(KEY1, IV1);
+        assertNotSame(first, second);
+
+        DecryptionContextCache.release(first);
+        NUSDecryption reused = DecryptionContextCache.borrow(KEY1, IV2);
+        assertSame(first, reused);
+        assertArrayEquals(IV2, reused.getIV());
+
+        // Contexts of other keys are never handed out.
+        DecryptionContextCache.release(second);
+        NUSDecryption other = DecryptionContextCache.borrow(KEY2, IV1);
+        assertNotSame(second, other);
+        assertArrayEquals(KEY2, other.getAESKey());
+    }
+}